@@ -0,0 +1,268 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.util.Arrays;
+
+/**
+ * Decides when data frames are acknowledged, tracking the sequence
+ * numbers in byte 3 of the frames.
+ *
+ * In MODE_PER_FRAME every frame gets its own ACK or NAK at once, which is
+ * stop-and-wait for a device that waits for each ACK. In MODE_WINDOWED
+ * frames received in order are acknowledged together: one cumulative ACK
+ * for the last of them once the window is full, or once the ack delay
+ * passed since the first unacknowledged one. Frames missing from the
+ * sequence and corrupt frames get a NAK each.
+ *
+ * No ACK ever goes past the first missing frame: a device that takes it
+ * to cover everything up to its sequence number would drop the missing
+ * frame if its retransmission were lost as well. Frames received after a
+ * gap are decoded but not acknowledged, since an ACK carries nothing but a
+ * sequence number and would cover the gap too; once the retransmission
+ * fills the gap, one cumulative ACK covers it and them.
+ *
+ * A device that does not understand cumulative ACKs shows it in one of two
+ * ways, and either makes the window fall back to per-frame ACKs for the
+ * rest of the connection:
+ * <ul>
+ * <li>it waits for every ACK, so the ack delay keeps running out with
+ * less than a window received</li>
+ * <li>it sends frames again that a cumulative ACK already covered</li>
+ * </ul>
+ */
+public class AckWindow {
+
+    public static final int MODE_PER_FRAME = 0;
+    public static final int MODE_WINDOWED = 1;
+
+    public static final int DEFAULT_WINDOW = 8;
+    public static final long DEFAULT_ACK_DELAY_MS = 20;
+
+    // Partial windows flushed by the ack delay in a row before the device
+    // is taken to be stop-and-wait
+    static final int STALL_LIMIT = 3;
+    // Frames sent again although acknowledged, before falling back
+    static final int DUPLICATE_LIMIT = 2;
+
+    /**
+     * Writes an ACK (ok) or NAK for a sequence number.
+     */
+    public interface Sender {
+        /**
+         * @param readNanos  System.nanoTime() when the frame answered was
+         *                   read; for a cumulative ACK the first frame it
+         *                   covers, for a missing frame the one that
+         *                   showed the gap
+         */
+        void sendAck(int seq, boolean ok, long readNanos);
+    }
+
+    private final Sender mSender;
+
+    // All guarded by this
+    private int mMode;
+    private int mWindow;
+    private long mAckDelayNanos;
+    private boolean mFallback;
+    private int mExpected = -1;     // first frame not received, -1 before the first frame
+    private int mPending;           // in-order frames not acknowledged yet
+    private long mFirstPending;     // System.nanoTime() of the first of them
+    private boolean mTimerArmed;
+    private final boolean[] mNaked = new boolean[256];
+    // Received after the gap at mExpected, not acknowledged yet
+    private final boolean[] mAhead = new boolean[256];
+    private int mStalls;
+    private int mDuplicates;
+
+    // Statistics
+    private long mAcks;
+    private long mNaks;
+    private long mFrames;
+
+    public AckWindow(Sender sender) {
+        this(sender, MODE_PER_FRAME, DEFAULT_WINDOW, DEFAULT_ACK_DELAY_MS);
+    }
+
+    /**
+     * @param sender      Writes the ACKs and NAKs
+     * @param mode        MODE_PER_FRAME or MODE_WINDOWED
+     * @param window      Frames acknowledged by one cumulative ACK
+     * @param ackDelayMs  Longest time a received frame waits for its ACK
+     */
+    public AckWindow(Sender sender, int mode, int window, long ackDelayMs) {
+        mSender = sender;
+        setMode(mode, window, ackDelayMs);
+    }
+
+    /**
+     * Change the mode. Frames waiting for a cumulative ACK are acknowledged
+     * first, and a fallback to per-frame ACKs is forgotten.
+     */
+    public synchronized void setMode(int mode, int window, long ackDelayMs) {
+        checkMode(mode, window, ackDelayMs);
+        flush();
+        mMode = mode;
+        mWindow = window;
+        mAckDelayNanos = ackDelayMs * 1000000L;
+        mFallback = false;
+        mStalls = 0;
+        mDuplicates = 0;
+    }
+
+    static void checkMode(int mode, int window, long ackDelayMs) {
+        if ((mode != MODE_PER_FRAME && mode != MODE_WINDOWED) || window < 1 || window > 127
+                || ackDelayMs < 0) {
+            throw new IllegalArgumentException("bad ack mode " + mode + "/" + window + "/" + ackDelayMs);
+        }
+    }
+
+    /**
+     * Return true if frames are acknowledged in batches, i.e. the mode is
+     * MODE_WINDOWED and the device did not make it fall back.
+     */
+    public synchronized boolean isWindowed() {
+        return mMode == MODE_WINDOWED && !mFallback;
+    }
+
+    public synchronized boolean hasFallenBack() {
+        return mFallback;
+    }
+
+    public synchronized long getAckDelayMs() {
+        return mAckDelayNanos / 1000000L;
+    }
+
+    /**
+     * A data frame with a good CRC arrived.
+     * @param now  System.nanoTime()
+     * @return true if the caller has to call flushIfDue() after the ack
+     *         delay, because frames now wait for a cumulative ACK and no
+     *         such call is pending yet
+     */
+    public synchronized boolean onFrame(int seq, long now) {
+        seq &= 0xff;
+        mFrames++;
+        if (!isWindowed()) {
+            send(seq, true, now);
+            return false;
+        }
+
+        if (mExpected >= 0 && seq != mExpected) {
+            if (isBefore(seq, mExpected)) {
+                // Sent again although an ACK covers it, or will
+                flush();
+                send(seq, true, now);
+                if (++mDuplicates >= DUPLICATE_LIMIT) fallBack();
+                return false;
+            }
+            if (((seq - mExpected) & 0xff) <= mWindow) {
+                // Frames went missing: acknowledge what came before the
+                // gap, ask for each missing frame and hold this one
+                flush();
+                for (int s = mExpected; s != seq; s = (s + 1) & 0xff) {
+                    if (mNaked[s] || mAhead[s]) continue;
+                    mNaked[s] = true;
+                    send(s, false, now);
+                }
+                mNaked[seq] = false;
+                mAhead[seq] = true;
+                return false;
+            }
+            // A device cannot run a window ahead of its first unacknowledged
+            // frame, so it restarted its numbering: start over from seq
+            flush();
+            Arrays.fill(mNaked, false);
+            Arrays.fill(mAhead, false);
+        }
+
+        // In order, possibly filling a gap
+        boolean filled = mNaked[seq];
+        mNaked[seq] = false;
+        mExpected = (seq + 1) & 0xff;
+        while (mAhead[mExpected]) {
+            mAhead[mExpected] = false;
+            mExpected = (mExpected + 1) & 0xff;
+            filled = true;
+        }
+        if (mPending++ == 0) mFirstPending = now;
+        if (mPending >= mWindow || filled) {
+            // A filled gap is acknowledged at once, the device waits for it
+            mStalls = 0;
+            flush();
+            return false;
+        }
+        if (mTimerArmed) return false;
+        mTimerArmed = true;
+        return true;
+    }
+
+    /**
+     * A data frame with a bad CRC arrived; seq is whatever its byte 3 says.
+     * @param now  System.nanoTime()
+     */
+    public synchronized void onCorruptFrame(int seq, long now) {
+        seq &= 0xff;
+        if (isWindowed()) {
+            flush();
+            mNaked[seq] = true;
+        }
+        send(seq, false, now);
+    }
+
+    /**
+     * Send the cumulative ACK if the first waiting frame has waited for
+     * the ack delay.
+     * @param now  System.nanoTime()
+     * @return Nanoseconds until the caller has to call again, or -1 if
+     *         nothing is waiting any more
+     */
+    public synchronized long flushIfDue(long now) {
+        if (mPending == 0) {
+            mTimerArmed = false;
+            return -1;
+        }
+        long wait = mFirstPending + mAckDelayNanos - now;
+        if (wait > 0) return wait;
+        flush();
+        mTimerArmed = false;
+        // A device that waits for every ACK never fills the window
+        if (++mStalls >= STALL_LIMIT) fallBack();
+        return -1;
+    }
+
+    /** Number of ACK frames sent. */
+    public synchronized long getAckCount() {
+        return mAcks;
+    }
+
+    /** Number of NAK frames sent. */
+    public synchronized long getNakCount() {
+        return mNaks;
+    }
+
+    /** Number of good data frames seen. */
+    public synchronized long getFrameCount() {
+        return mFrames;
+    }
+
+    private void flush() {
+        if (mPending == 0) return;
+        mPending = 0;
+        send((mExpected - 1) & 0xff, true, mFirstPending);
+    }
+
+    private void fallBack() {
+        flush();
+        mFallback = true;
+    }
+
+    private void send(int seq, boolean ok, long readNanos) {
+        if (ok) mAcks++; else mNaks++;
+        mSender.sendAck(seq, ok, readNanos);
+    }
+
+    // True if a comes before b in the 8 bit sequence space
+    private static boolean isBefore(int a, int b) {
+        int d = (b - a) & 0xff;
+        return d != 0 && d < 128;
+    }
+}
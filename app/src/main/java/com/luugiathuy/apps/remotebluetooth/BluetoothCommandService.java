@@ -1,10 +1,21 @@
 package com.luugiathuy.apps.remotebluetooth;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -13,32 +24,134 @@ import android.content.Context;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
 public class BluetoothCommandService {
 	// Debugging
     private static final String TAG = "BluetoothCommandService";
-    private static final boolean D = true;
+    // Enabled with "adb shell setprop log.tag.BluetoothCommandService DEBUG"
+    private static final boolean D = Log.isLoggable(TAG, Log.DEBUG);
 
     // Unique UUID for this application
-    private static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    // Number of frame buffers that may be in flight to the UI at once
+    private static final int FRAME_POOL_SIZE = 32;
+    // Number of frames that may wait for the DecodeThread
+    private static final int DECODE_QUEUE_SIZE = 16;
+    // Longest wait for the WriteThread to drain when a connection is cancelled
+    private static final long WRITE_DRAIN_MS = 50;
+    // Deadlines of one connect() attempt and of closing a connection
+    public static final long DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+    public static final long DEFAULT_TEARDOWN_TIMEOUT_MS = 2000;
     
     
     // Member fields
     private final BluetoothAdapter mAdapter;
     private final Handler mHandler;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
-//    private BluetoothDevice mSavedDevice;
-//    private int mConnectionLostCount;
+    private final Executor mExecutor;
+    private final FramePool mFramePool = new FramePool(FRAME_POOL_SIZE, FrameDecoder.DEFAULT_MAX_FRAME);
+    private final FrameTrace mTrace = new FrameTrace();
+    private final Metrics mMetrics = new Metrics();
+    private final Metrics.Counter mBytesIn = mMetrics.counter(METRIC_BYTES_IN);
+    private final Metrics.Counter mBytesOut = mMetrics.counter(METRIC_BYTES_OUT);
+    private final Metrics.Counter mFramesIn = mMetrics.counter(METRIC_FRAMES);
+    private final Metrics.Counter mCrcErrors = mMetrics.counter(METRIC_CRC_ERRORS);
+    private final Metrics.Counter mAcks = mMetrics.counter(METRIC_ACKS);
+    private final Metrics.Counter mNaks = mMetrics.counter(METRIC_NAKS);
+    private final Metrics.Counter mResyncs = mMetrics.counter(METRIC_RESYNCS);
+    private final Metrics.Counter mDroppedBytes = mMetrics.counter(METRIC_DROPPED_BYTES);
+    private final Metrics.Counter mLinksLost = mMetrics.counter(METRIC_CONNECTIONS_LOST);
+    private final Metrics.Counter mReconnectCount = mMetrics.counter(METRIC_RECONNECTS);
+    private final Metrics.Histogram mAckLatency = mMetrics.histogram(METRIC_ACK_LATENCY);
+    private final Metrics.Histogram mWriteLatency = mMetrics.histogram(METRIC_WRITE_LATENCY);
+    private final Metrics.Histogram mConnectLatency = mMetrics.histogram(METRIC_CONNECT_LATENCY);
+    private final Metrics.Histogram mCancelLatency = mMetrics.histogram(METRIC_CANCEL_LATENCY);
+    private final Metrics.Counter mConnectTimeouts = mMetrics.counter(METRIC_CONNECT_TIMEOUTS);
+    private final Metrics.Counter mTeardownTimeouts = mMetrics.counter(METRIC_TEARDOWN_TIMEOUTS);
+    private final Metrics.Histogram mTimeToConnected = mMetrics.histogram(METRIC_TIME_TO_CONNECTED);
+    private final Metrics.Counter mRaceLosers = mMetrics.counter(METRIC_RACE_LOSERS);
+    private final Metrics.Counter mProbes = mMetrics.counter(METRIC_PROBES);
+    private final Metrics.Counter mLinkTimeouts = mMetrics.counter(METRIC_LINK_TIMEOUTS);
+    // Unblocks stuck connect()s and runs every close() off the caller's thread
+    private final Watchdog mWatchdog = Watchdog.getDefault();
+    private volatile long mConnectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    private volatile long mTeardownTimeoutMs = DEFAULT_TEARDOWN_TIMEOUT_MS;
+    private volatile boolean mRaceConnect;
+    // Dead link detection is off until setLiveness() turns it on
+    private volatile long mIdleMs;
+    private volatile long mProbeTimeoutMs = LinkMonitor.DEFAULT_PROBE_TIMEOUT_MS;
+    private volatile boolean mProbe;
+    // Close of the last cancelled connection, a new connect waits for it
+    private volatile Future<?> mTeardown;
+    private volatile FrameQueue mDecodeQueue;
+    private volatile ReadingLog mReadingLog;
+    private volatile boolean mVerifyDecoder;
+    // The current threads; whoever swaps one out cancels it
+    private final AtomicReference<ConnectThread> mConnectThread = new AtomicReference<ConnectThread>();
+    private final AtomicReference<ConnectedThread> mConnectedThread = new AtomicReference<ConnectedThread>();
+    private final ConnectionState mState = new ConnectionState();
+    private volatile String mDeviceAddress;
+    private volatile long mWriteIdleMs = WriteThread.DEFAULT_IDLE_MS;
+    private volatile long mWriteMaxLatencyMs = WriteThread.DEFAULT_MAX_LATENCY_MS;
+    private volatile int mAckMode = AckWindow.MODE_PER_FRAME;
+    private volatile int mAckWindow = AckWindow.DEFAULT_WINDOW;
+    private volatile long mAckDelayMs = AckWindow.DEFAULT_ACK_DELAY_MS;
+    private volatile BluetoothDevice mSavedDevice;
+    private volatile int mSavedStrategy = STRATEGY_SERVICE_RECORD;
+    private final AtomicInteger mConnectionLostCount = new AtomicInteger();
+    private volatile ReconnectPolicy mReconnectPolicy = new ReconnectPolicy();
+    private volatile ConnectStrategyCache mStrategyCache;
+
+    // Hidden BluetoothDevice.createRfcommSocket(int), looked up once
+    private static volatile Method sCreateRfcommSocket;
+    private volatile boolean mReconnecting;
+    private volatile long mLostAt;
+
+    // Reconnect statistics, the count is mReconnectCount
+    private volatile long mLastReconnectLatency = -1;
+    private final AtomicLong mTotalReconnectLatency = new AtomicLong();
     
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
     public static final int STATE_LISTEN = 1;     // now listening for incoming connections
     public static final int STATE_CONNECTING = 2; // now initiating an outgoing connection
     public static final int STATE_CONNECTED = 3;  // now connected to a remote device
+
+    // Names of the metrics in getMetrics()
+    public static final String METRIC_BYTES_IN = "bytes_in";
+    public static final String METRIC_BYTES_OUT = "bytes_out";
+    public static final String METRIC_FRAMES = "frames";
+    public static final String METRIC_CRC_ERRORS = "crc_errors";
+    public static final String METRIC_ACKS = "acks";
+    public static final String METRIC_NAKS = "naks";
+    public static final String METRIC_RESYNCS = "resyncs";
+    public static final String METRIC_DROPPED_BYTES = "dropped_bytes";
+    public static final String METRIC_CONNECTIONS_LOST = "connections_lost";
+    public static final String METRIC_RECONNECTS = "reconnects";
+    public static final String METRIC_DECODE_QUEUE_DEPTH = "decode_queue_depth";
+    public static final String METRIC_DECODE_QUEUE_MAX_DEPTH = "decode_queue_max_depth";
+    public static final String METRIC_FRAME_POOL_OUTSTANDING = "frame_pool_outstanding";
+    public static final String METRIC_FRAME_POOL_EXHAUSTED = "frame_pool_exhausted";
+    public static final String METRIC_ACK_LATENCY = "ack_latency_ns";     // read() returned to ACK queued
+    public static final String METRIC_WRITE_LATENCY = "write_latency_ns"; // queued to flushed
+    public static final String METRIC_CONNECT_LATENCY = "connect_latency_ns"; // successful connect()
+    public static final String METRIC_CANCEL_LATENCY = "cancel_latency_ns";   // cancel() to socket closed
+    public static final String METRIC_CONNECT_TIMEOUTS = "connect_timeouts";
+    public static final String METRIC_TEARDOWN_TIMEOUTS = "teardown_timeouts";
+    public static final String METRIC_TIME_TO_CONNECTED = "time_to_connected_ns"; // connect() to socket up
+    public static final String METRIC_RACE_LOSERS = "race_losers"; // attempts cancelled by a faster one
+    public static final String METRIC_PROBES = "probes";               // keep-alives sent to a quiet link
+    public static final String METRIC_LINK_TIMEOUTS = "link_timeouts"; // links found dead by LinkMonitor
+
+    // Ways of creating the RFCOMM socket
+    public static final int STRATEGY_SERVICE_RECORD = 0; // SDP lookup of MY_UUID
+    public static final int STRATEGY_CHANNEL = 1;        // hidden createRfcommSocket(1)
+
+    // Most devices raced by connect(BluetoothDevice[])
+    public static final int MAX_RACE_DEVICES = 3;
     
     // Constants that indicate command to computer
     public static final int EXIT_CMD = -1;
@@ -52,249 +165,921 @@ public class BluetoothCommandService {
      * @param handler  A Handler to send messages back to the UI Activity
      */
     public BluetoothCommandService(Context context, Handler handler) {
+        this(context, handler, null);
+    }
+
+    /**
+     * Constructor. Prepares a new session whose connect and read loops run
+     * on a shared executor. Its decode and write loops always get threads
+     * of their own, so they never wait behind a blocked read.
+     * @param context   The UI Activity Context
+     * @param handler   A Handler to send messages back to the UI Activity
+     * @param executor  Runs the connect and read loops, or null to start a
+     *                  Thread for each of them
+     */
+    public BluetoothCommandService(Context context, Handler handler, Executor executor) {
     	mAdapter = BluetoothAdapter.getDefaultAdapter();
-    	mState = STATE_NONE;
     	//mConnectionLostCount = 0;
     	mHandler = handler;
+    	mExecutor = executor;
+    	mStrategyCache = new ConnectStrategyCache(context);
+
+        mState.addListener(new ConnectionState.Listener() {
+            public void onStateChanged(int oldState, int newState) {
+                if (D) Log.d(TAG, "setState() " + oldState + " -> " + newState);
+                // Give the new state to the Handler so the UI Activity can update
+                tag(mHandler.obtainMessage(RemoteBluetooth.MESSAGE_STATE_CHANGE, newState, -1)).sendToTarget();
+            }
+        });
+
+        mMetrics.gauge(METRIC_DECODE_QUEUE_DEPTH, new Metrics.Gauge() {
+            public long get() {
+                FrameQueue queue = mDecodeQueue;
+                return queue == null ? 0 : queue.size();
+            }
+        });
+        mMetrics.gauge(METRIC_DECODE_QUEUE_MAX_DEPTH, new Metrics.Gauge() {
+            public long get() {
+                FrameQueue queue = mDecodeQueue;
+                return queue == null ? 0 : queue.getMaxDepth();
+            }
+        });
+        mMetrics.gauge(METRIC_FRAME_POOL_OUTSTANDING, new Metrics.Gauge() {
+            public long get() {
+                return mFramePool.getOutstanding();
+            }
+        });
+        mMetrics.gauge(METRIC_FRAME_POOL_EXHAUSTED, new Metrics.Gauge() {
+            public long get() {
+                return mFramePool.getExhaustedCount();
+            }
+        });
+    }
+
+    /**
+     * Use the given strategy cache instead of the service's own.
+     */
+    public void setStrategyCache(ConnectStrategyCache cache) {
+        mStrategyCache = cache;
+    }
+
+    /**
+     * Return the per-device record of socket strategies and connect times.
+     */
+    public ConnectStrategyCache getStrategyCache() {
+        return mStrategyCache;
+    }
+
+    /**
+     * Add the address of the session's device to a message for the Handler.
+     */
+    private Message tag(Message msg) {
+        String address = mDeviceAddress;
+        if (address != null) msg.getData().putString(RemoteBluetooth.DEVICE_ADDRESS, address);
+        return msg;
+    }
+
+    /**
+     * Run a connect or read loop, on the executor if there is one.
+     */
+    private void execute(Thread thread) {
+        if (mExecutor != null) {
+            mExecutor.execute(thread);
+        } else {
+            thread.start();
+        }
+    }
+
+    /**
+     * Return the address of the device this session connects to, or null.
+     */
+    public String getDeviceAddress() {
+        return mDeviceAddress;
     }
     
     /**
      * Set the current state of the chat connection
      * @param state  An integer defining the current connection state
      */
-    private synchronized void setState(int state) {
-        if (D) Log.d(TAG, "setState() " + mState + " -> " + state);
-        mState = state;
-
-        // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(RemoteBluetooth.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+    private void setState(int state) {
+        mState.moveTo(state);
     }
 
     /**
      * Return the current connection state. */
-    public synchronized int getState() {
-        return mState;
+    public int getState() {
+        return mState.get();
+    }
+
+    /**
+     * Be told about every change of the connection state, on the thread
+     * that made it. The Handler gets MESSAGE_STATE_CHANGE either way.
+     */
+    public void addStateListener(ConnectionState.Listener listener) {
+        mState.addListener(listener);
+    }
+
+    public void removeStateListener(ConnectionState.Listener listener) {
+        mState.removeListener(listener);
+    }
+
+    private void cancelConnectThread() {
+        ConnectThread thread = mConnectThread.getAndSet(null);
+        if (thread != null) thread.cancel();
+    }
+
+    private void cancelConnectedThread() {
+        ConnectedThread thread = mConnectedThread.getAndSet(null);
+        if (thread != null) thread.cancel();
     }
     
     /**
      * Start the chat service. Specifically start AcceptThread to begin a
      * session in listening (server) mode. Called by the Activity onResume() */
-    public synchronized void start() {
+    public void start() {
         if (D) Log.d(TAG, "start");
+        cancelReconnect();
+        // Change the state first so that threads still finishing lose
+        // their compare-and-set against it
+        setState(STATE_LISTEN);
 
         // Cancel any thread attempting to make a connection
-        if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
+        cancelConnectThread();
 
         // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
-
-        setState(STATE_LISTEN);
+        cancelConnectedThread();
     }
     
     /**
      * Start the ConnectThread to initiate a connection to a remote device.
      * @param device  The BluetoothDevice to connect
      */
-    public synchronized void connect(BluetoothDevice device) {
-    	if (D) Log.d(TAG, "connect to: " + device);
+    public void connect(BluetoothDevice device) {
+        cancelReconnect();
+        mConnectionLostCount.set(0);
+        connect(new BluetoothDevice[] {device},
+                mStrategyCache.getPreferredStrategy(device.getAddress()), mRaceConnect, false);
+    }
 
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
+    /**
+     * Connect to whichever of several devices answers first, racing both
+     * socket strategies on each. The first socket to connect wins and the
+     * other attempts are cancelled.
+     * @param devices  Candidates, best first; at most MAX_RACE_DEVICES are
+     *                 tried
+     */
+    public void connect(BluetoothDevice[] devices) {
+        if (devices.length == 0) throw new IllegalArgumentException("no devices");
+        cancelReconnect();
+        mConnectionLostCount.set(0);
+        if (devices.length > MAX_RACE_DEVICES) {
+            BluetoothDevice[] first = new BluetoothDevice[MAX_RACE_DEVICES];
+            System.arraycopy(devices, 0, first, 0, MAX_RACE_DEVICES);
+            devices = first;
         }
+        connect(devices, mStrategyCache.getPreferredStrategy(devices[0].getAddress()), true, false);
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
+    /**
+     * Race the socket strategies in connect(BluetoothDevice) instead of
+     * trying the preferred one first and the other only after it failed.
+     * Reconnects always try the strategy that worked before first.
+     */
+    public void setRaceConnect(boolean race) {
+        mRaceConnect = race;
+    }
+
+    /**
+     * Start the ConnectThread, trying the given socket strategy first.
+     * @param strategy   Preferred strategy of the first device
+     * @param race       Try all strategies and devices at the same time
+     * @param reconnect  Only go ahead if nothing else is connecting and the
+     *                   state is still the STATE_CONNECTING set by
+     *                   scheduleReconnect()
+     */
+    private void connect(BluetoothDevice[] devices, int strategy, boolean race, boolean reconnect) {
+        BluetoothDevice device = devices[0];
+    	if (D) Log.d(TAG, "connect to: " + device + " strategy " + strategy
+    	        + (race ? " racing " + devices.length : ""));
+        ConnectThread thread = new ConnectThread(devices, strategy, race);
+
+        if (reconnect) {
+            // Give up if connect(), start() or stop() came first. stop()
+            // changes the state before it cancels mConnectThread, so
+            // either it sees the thread or the thread sees its state.
+            if (!mConnectThread.compareAndSet(null, thread)) return;
+            if (mState.get() != STATE_CONNECTING) {
+                mConnectThread.compareAndSet(thread, null);
+                return;
+            }
+        } else {
+            mDeviceAddress = device.getAddress();
+
+            // Cancel any thread attempting to make a connection
+            ConnectThread old = mConnectThread.getAndSet(thread);
+            if (old != null) old.cancel();
+
+            // Cancel any thread currently running a connection
+            cancelConnectedThread();
+
+            setState(STATE_CONNECTING);
+        }
 
         // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device);
-        mConnectThread.start();
-        setState(STATE_CONNECTING);
+        execute(thread);
     }
     
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * Start the ConnectedThread to begin managing a Bluetooth connection.
+     * A stopped service closes the socket instead; call start() first.
      * @param socket  The BluetoothSocket on which the connection was made
      * @param device  The BluetoothDevice that has been connected
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice device) {
+    public void connected(BluetoothSocket socket, BluetoothDevice device) {
+        cancelReconnect();
+        mDeviceAddress = device.getAddress();
+        mSavedDevice = device;
+        mSavedStrategy = STRATEGY_SERVICE_RECORD;
+        startConnection(new BluetoothSocketTransport(socket), device.getName(), false);
+    }
+
+    /**
+     * Called by the ConnectThread once its socket is connected.
+     */
+    private void connected(BluetoothSocket socket, BluetoothDevice device, int strategy) {
+        // save connected device and the socket strategy that worked; a
+        // race may have connected another device than the first
+        mDeviceAddress = device.getAddress();
+        mSavedDevice = device;
+        mSavedStrategy = strategy;
+        if (!startConnection(new BluetoothSocketTransport(socket), device.getName(), true)) return;
+
+        // reset connection lost count
+        mConnectionLostCount.set(0);
+        if (mReconnecting) {
+            mReconnecting = false;
+            long latency = SystemClock.elapsedRealtime() - mLostAt;
+            mLastReconnectLatency = latency;
+            mTotalReconnectLatency.addAndGet(latency);
+            mReconnectCount.increment();
+            if (D) Log.d(TAG, "reconnected in " + latency + " ms");
+        }
+    }
+
+    /**
+     * Start the ConnectedThread over any Transport, for example a
+     * SimulatedThermometer. The session is not reconnected when it is lost.
+     * A stopped service closes the transport instead; call start() first.
+     * @param transport  The connected transport
+     * @param name       Name reported to the UI Activity and used as the
+     *                   session's address
+     */
+    public void connected(Transport transport, String name) {
+        cancelReconnect();
+        mSavedDevice = null;
+        mDeviceAddress = name;
+        startConnection(transport, name, false);
+    }
+
+    /**
+     * Replace any running connection by a ConnectedThread on the transport
+     * and move to STATE_CONNECTED, or stay there.
+     * @param fromConnecting  Only go ahead if the state is still
+     *                        STATE_CONNECTING, i.e. nobody called stop()
+     *                        or start() while the socket was connecting
+     * @return false if the connection was given up
+     */
+    private boolean startConnection(Transport transport, String name, boolean fromConnecting) {
         if (D) Log.d(TAG, "connected");
 
         // Cancel the thread that completed the connection
-        if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
+        cancelConnectThread();
 
         // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
+        ConnectedThread thread = new ConnectedThread(transport);
+        ConnectedThread old = mConnectedThread.getAndSet(thread);
+        if (old != null) old.cancel();
+
+        boolean moved = fromConnecting
+                ? mState.compareAndSet(STATE_CONNECTING, STATE_CONNECTED)
+                : mState.moveTo(STATE_CONNECTED) >= 0;
+        if (!moved) {
+            // The thread never ran; whoever took it from mConnectedThread
+            // meanwhile cancelled it, which closes the transport
+            if (mConnectedThread.compareAndSet(thread, null)) {
+                closeLater(transport, System.nanoTime(), null);
+            }
+            return false;
+        }
 
         // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket);
-        mConnectedThread.start();
+        execute(thread);
 
         // Send the name of the connected device back to the UI Activity
         Message msg = mHandler.obtainMessage(RemoteBluetooth.MESSAGE_DEVICE_NAME);
         Bundle bundle = new Bundle();
-        bundle.putString(RemoteBluetooth.DEVICE_NAME, device.getName());
+        bundle.putString(RemoteBluetooth.DEVICE_NAME, name);
         msg.setData(bundle);
-        mHandler.sendMessage(msg);
-
-        // save connected device
-        //mSavedDevice = device;
-        // reset connection lost count
-        //mConnectionLostCount = 0;
-        
-        setState(STATE_CONNECTED);
+        mHandler.sendMessage(tag(msg));
+        return true;
     }
 
     /**
      * Stop all threads
      */
-    public synchronized void stop() {
+    public void stop() {
         if (D) Log.d(TAG, "stop");
-        if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
-        if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
-        
+        cancelReconnect();
+        // Change the state first so that threads still finishing lose
+        // their compare-and-set against it
         setState(STATE_NONE);
+        cancelConnectThread();
+        cancelConnectedThread();
     }
     
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Write to the ConnectedThread without taking a lock
      * @param out The bytes to write
      * @see ConnectedThread#write(byte[])
      */
     public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
-        }
-        // Perform the write unsynchronized
-        r.write(out);
+        if (mState.get() != STATE_CONNECTED) return;
+        ConnectedThread r = mConnectedThread.get();
+        if (r != null) r.write(out);
+    }
+
+    /**
+     * Write a command such as ContecCodec.REQUEST_ALL, without copying it
+     * into a new array first.
+     */
+    public void write(ContecCodec.Template command) {
+        if (mState.get() != STATE_CONNECTED) return;
+        ConnectedThread r = mConnectedThread.get();
+        if (r != null) r.write(command);
     }
     
 
     
+    /**
+     * Set when queued writes are flushed to the socket: after idleMs without
+     * new writes, and at the latest maxLatencyMs after the oldest one.
+     */
+    public void setWriteBounds(long idleMs, long maxLatencyMs) {
+        if (idleMs < 0 || maxLatencyMs < idleMs) {
+            throw new IllegalArgumentException("bad bounds " + idleMs + "/" + maxLatencyMs);
+        }
+        mWriteIdleMs = idleMs;
+        mWriteMaxLatencyMs = maxLatencyMs;
+        ConnectedThread r = mConnectedThread.get();
+        if (r != null) r.setWriteBounds(idleMs, maxLatencyMs);
+    }
+
+    /**
+     * Set how a dead link is detected, for connections started from now on;
+     * see LinkMonitor. Off by default, leaving it to the OS.
+     * @param idleMs          Longest silence of a link, 0 to rely on the
+     *                        OS alone. A link that is not streaming is
+     *                        only held to it with probes; without them a
+     *                        quiet device is never closed
+     * @param probeTimeoutMs  Wait for the answer to a keep-alive probe
+     * @param probe           Send keep-alive probes to a suspect link
+     *                        instead of closing it. A probe is a time
+     *                        read, which the device answers without side
+     *                        effects
+     */
+    public void setLiveness(long idleMs, long probeTimeoutMs, boolean probe) {
+        if (idleMs < 0 || probeTimeoutMs < 1) {
+            throw new IllegalArgumentException("bad liveness " + idleMs + "/" + probeTimeoutMs);
+        }
+        mIdleMs = idleMs;
+        mProbeTimeoutMs = probeTimeoutMs;
+        mProbe = probe;
+    }
+
+    /**
+     * Set the deadlines of connecting and closing. A connect() attempt that
+     * takes longer than connectMs is aborted by closing its socket from the
+     * watchdog. A close that takes longer than teardownMs is counted in
+     * METRIC_TEARDOWN_TIMEOUTS, and the next connect stops waiting for it.
+     */
+    public void setTimeouts(long connectMs, long teardownMs) {
+        if (connectMs < 1 || teardownMs < 1) {
+            throw new IllegalArgumentException("bad timeouts " + connectMs + "/" + teardownMs);
+        }
+        mConnectTimeoutMs = connectMs;
+        mTeardownTimeoutMs = teardownMs;
+    }
+
+    /**
+     * Close something on the watchdog, never on the calling thread.
+     * @param begin  System.nanoTime() of the cancel, for METRIC_CANCEL_LATENCY
+     * @param drain  Waited for before closing, or null
+     */
+    private void closeLater(final Closeable closeable, final long begin, final WriteThread drain) {
+        mTeardown = mWatchdog.execute(new Runnable() {
+            public void run() {
+                Watchdog.Deadline deadline = mWatchdog.schedule(mTeardownTimeoutMs, new Runnable() {
+                    public void run() {
+                        mTeardownTimeouts.increment();
+                        Log.w(TAG, "close() still blocked after " + mTeardownTimeoutMs + " ms");
+                    }
+                });
+                // Give the writer a moment to send what is pending
+                if (drain != null) drain.awaitStopped(WRITE_DRAIN_MS);
+                try {
+                    closeable.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close() of socket failed", e);
+                }
+                deadline.cancel();
+                mCancelLatency.record(System.nanoTime() - begin);
+            }
+        });
+    }
+
+    /**
+     * Wait until the last cancelled connection is closed, at most for the
+     * teardown deadline. Only called on connect threads.
+     */
+    private void awaitTeardown() {
+        Future<?> teardown = mTeardown;
+        if (teardown == null || teardown.isDone()) return;
+        try {
+            teardown.get(mTeardownTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Log.w(TAG, "connecting while the last connection is still closing");
+        } catch (ExecutionException e) {
+            Log.e(TAG, "teardown failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Choose how data frames are acknowledged, see AckWindow. Windowed
+     * ACKs keep several frames in flight, which speeds up history
+     * downloads from devices that support it; others make the connection
+     * fall back to per-frame ACKs by themselves.
+     * @param mode        AckWindow.MODE_PER_FRAME or MODE_WINDOWED
+     * @param window      Frames covered by one cumulative ACK
+     * @param ackDelayMs  Longest time a frame waits for its ACK
+     */
+    public void setAckMode(int mode, int window, long ackDelayMs) {
+        AckWindow.checkMode(mode, window, ackDelayMs);
+        mAckMode = mode;
+        mAckWindow = window;
+        mAckDelayMs = ackDelayMs;
+        ConnectedThread r = mConnectedThread.get();
+        if (r != null) r.setAckMode(mode, window, ackDelayMs);
+    }
+
+    /**
+     * Return true if the current connection acknowledges frames in
+     * batches, false if it acknowledges each frame, by configuration or
+     * because the device needed it.
+     */
+    public boolean isAckWindowed() {
+        ConnectedThread r = mConnectedThread.get();
+        return r != null && r.isAckWindowed();
+    }
+
+    /**
+     * Store every reading received from now on in a log, or in none if
+     * null. The log is not closed by this session.
+     */
+    public void setReadingLog(ReadingLog log) {
+        mReadingLog = log;
+        ConnectedThread r = mConnectedThread.get();
+        if (r != null) r.setReadingLog(log);
+    }
+
+    /**
+     * Check the decoding of connections made from now on against the SDK's
+     * and log where they disagree (see DecodeThread.setVerify()).
+     */
+    public void setVerifyDecoder(boolean verify) {
+        mVerifyDecoder = verify;
+    }
+
+    /**
+     * Return the pool backing received frame buffers, for its statistics.
+     */
+    public FramePool getFramePool() {
+        return mFramePool;
+    }
+
+    /**
+     * Return the link metrics of this session: byte, frame, CRC error,
+     * ACK/NAK and reconnect counters, queue depths and ACK/write latency
+     * histograms. Take a snapshot() to read or export them.
+     */
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Return the ring of recent frames and ACK/NAK decisions.
+     */
+    public FrameTrace getFrameTrace() {
+        return mTrace;
+    }
+
+    /**
+     * Set how much of each frame is traced, one of FrameTrace.LEVEL_*.
+     */
+    public void setTraceLevel(int level) {
+        mTrace.setLevel(level);
+    }
+
+    /**
+     * Write the frame trace to the log, one record per line.
+     */
+    public void dumpTrace() {
+        String dump = mTrace.dump();
+        int start = 0;
+        while (start < dump.length()) {
+            int end = dump.indexOf('\n', start);
+            Log.i(TAG, dump.substring(start, end));
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Replace the backoff used to reconnect after a lost connection.
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    /**
+     * Return the number of successful reconnects after a lost connection.
+     */
+    public long getReconnectCount() {
+        return mReconnectCount.get();
+    }
+
+    /**
+     * Return the time from losing the connection to being connected again
+     * for the last reconnect, in ms, or -1 if there was none.
+     */
+    public long getLastReconnectLatency() {
+        return mLastReconnectLatency;
+    }
+
+    /**
+     * Return the mean reconnect time in ms, or -1 if there was no reconnect.
+     */
+    public long getMeanReconnectLatency() {
+        long reconnects = mReconnectCount.get();
+        return reconnects == 0 ? -1 : mTotalReconnectLatency.get() / reconnects;
+    }
+
+    private final Runnable mReconnect = new Runnable() {
+        public void run() {
+            BluetoothDevice device = mSavedDevice;
+            if (!mReconnecting || device == null) return;
+            connect(new BluetoothDevice[] {device}, mSavedStrategy, false, true);
+        }
+    };
+
+    /**
+     * Return true if the policy allows another reconnect attempt.
+     */
+    private boolean canReconnect() {
+        return mSavedDevice != null && mReconnectPolicy.shouldRetry(mConnectionLostCount.get());
+    }
+
+    /**
+     * Schedule the next reconnect attempt and move from the expected state
+     * to STATE_CONNECTING.
+     * @return false if the state was changed by someone else meanwhile
+     */
+    private boolean scheduleReconnect(int expect) {
+        int attempt = mConnectionLostCount.getAndIncrement();
+        long delay = mReconnectPolicy.getDelay(attempt);
+        // A retry stays in STATE_CONNECTING and is not reported again
+        boolean moved = expect == STATE_CONNECTING
+                ? mState.get() == STATE_CONNECTING
+                : mState.compareAndSet(expect, STATE_CONNECTING);
+        if (!moved) return false;
+        if (D) Log.d(TAG, "reconnect attempt " + (attempt + 1) + " in " + delay + " ms");
+        mReconnecting = true;
+        mHandler.postDelayed(mReconnect, delay);
+        return true;
+    }
+
+    private void cancelReconnect() {
+        mReconnecting = false;
+        mHandler.removeCallbacks(mReconnect);
+    }
+
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
      */
     private void connectionFailed(String e) {
-        setState(STATE_LISTEN);
+        // A failed reconnect attempt just waits for the next one
+        if (mReconnecting && canReconnect()) {
+            scheduleReconnect(STATE_CONNECTING);
+            return;
+        }
+        mReconnecting = false;
+        if (!mState.compareAndSet(STATE_CONNECTING, STATE_LISTEN)) return;
 
         // Send a failure message back to the Activity
         Message msg = mHandler.obtainMessage(RemoteBluetooth.MESSAGE_TOAST);
         Bundle bundle = new Bundle();
         bundle.putString(RemoteBluetooth.TOAST, e);
         msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        mHandler.sendMessage(tag(msg));
     }
 
     /**
      * Indicate that the connection was lost and notify the UI Activity.
      */
     private void connectionLost() {
-//        mConnectionLostCount++;
-//        if (mConnectionLostCount < 3) {
-//        	// Send a reconnect message back to the Activity
-//	        Message msg = mHandler.obtainMessage(RemoteBluetooth.MESSAGE_TOAST);
-//	        Bundle bundle = new Bundle();
-//	        bundle.putString(RemoteBluetooth.TOAST, "Device connection was lost. Reconnecting...");
-//	        msg.setData(bundle);
-//	        mHandler.sendMessage(msg);
-//	        
-//        	connect(mSavedDevice);   	
-//        } else {
-        	setState(STATE_LISTEN);
+        mLostAt = SystemClock.elapsedRealtime();
+        mLinksLost.increment();
+        mConnectionLostCount.set(0);
+        if (canReconnect()) {
+            // Nothing to do if stop() or start() came first
+            if (!scheduleReconnect(STATE_CONNECTED)) return;
+        	// Send a reconnect message back to the Activity
+	        Message msg = mHandler.obtainMessage(RemoteBluetooth.MESSAGE_TOAST);
+	        Bundle bundle = new Bundle();
+	        bundle.putString(RemoteBluetooth.TOAST, "Device connection was lost. Reconnecting...");
+	        msg.setData(bundle);
+	        mHandler.sendMessage(tag(msg));
+        } else {
+            if (!mState.compareAndSet(STATE_CONNECTED, STATE_LISTEN)) return;
 	        // Send a failure message back to the Activity
 	        Message msg = mHandler.obtainMessage(RemoteBluetooth.MESSAGE_TOAST);
 	        Bundle bundle = new Bundle();
 	        bundle.putString(RemoteBluetooth.TOAST, "Device connection was lost");
 	        msg.setData(bundle);
-	        mHandler.sendMessage(msg);
-//        }
+	        mHandler.sendMessage(tag(msg));
+        }
     }
     
     /**
-     * This thread runs while attempting to make an outgoing connection
-     * with a device. It runs straight through; the connection either
-     * succeeds or fails.
+     * Create the RFCOMM socket for a device with one of the STRATEGY_ constants.
      */
-    private class ConnectThread extends Thread {
-        private BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+    private static BluetoothSocket createSocket(BluetoothDevice device, int strategy) throws IOException {
+        if (strategy == STRATEGY_SERVICE_RECORD) {
+            return device.createRfcommSocketToServiceRecord(MY_UUID);
+        }
+        try {
+            Method method = sCreateRfcommSocket;
+            if (method == null) {
+                method = BluetoothDevice.class.getMethod("createRfcommSocket", new Class[] {int.class});
+                sCreateRfcommSocket = method;
+            }
+            return (BluetoothSocket) method.invoke(device, 1);
+        } catch (IllegalAccessException e) {
+            throw new IOException(e.toString());
+        } catch (InvocationTargetException e) {
+            throw new IOException(e.toString());
+        } catch (NoSuchMethodException e) {
+            throw new IOException(e.toString());
+        }
+    }
 
-        public ConnectThread(BluetoothDevice device) {
+    /**
+     * One socket strategy against one device. A ConnectThread runs its
+     * attempts one after the other, or all at once on watchdog workers
+     * when racing.
+     */
+    private class Attempt implements Runnable {
+        final BluetoothDevice mmDevice;
+        final int mmStrategy;
+        private final ConnectThread mmOwner;
+        volatile BluetoothSocket mmSocket;
+        private volatile boolean mmCanceled;
+        private volatile boolean mmFinished;
+
+        Attempt(ConnectThread owner, BluetoothDevice device, int strategy) {
+            mmOwner = owner;
             mmDevice = device;
-            BluetoothSocket tmp = null;
+            mmStrategy = strategy;
+        }
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
+        /**
+         * Create and connect the socket. Its connect() has a deadline, after
+         * which the watchdog closes the socket to unblock it.
+         * @return The connected socket
+         */
+        BluetoothSocket connect() throws IOException {
+            ConnectStrategyCache cache = getStrategyCache();
+            String address = mmDevice.getAddress();
+            long begin = System.nanoTime();
+            Watchdog.Deadline deadline = null;
             try {
-                tmp = device.createRfcommSocketToServiceRecord(MY_UUID);
+                final BluetoothSocket socket = createSocket(mmDevice, mmStrategy);
+                mmSocket = socket;
+                if (mmCanceled) throw new IOException("canceled");
+                deadline = mWatchdog.schedule(mConnectTimeoutMs, new Runnable() {
+                    public void run() {
+                        Log.w(TAG, "connect() timed out after " + mConnectTimeoutMs + " ms");
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            Log.e(TAG, "close() of timed out socket failed", e);
+                        }
+                    }
+                });
+                // This is a blocking call and will only return on a
+                // successful connection, an exception or the deadline
+                socket.connect();
+                // Connected just as the deadline closed the socket
+                if (!deadline.cancel()) throw new IOException("connect timed out");
             } catch (IOException e) {
-                Log.e(TAG, "create() failed", e);
+                Log.e("device", address + " strategy " + mmStrategy + " error- " + e);
+                IOException failure = e;
+                if (deadline != null && !deadline.cancel()) {
+                    mConnectTimeouts.increment();
+                    failure = new IOException("connect timed out after " + mConnectTimeoutMs + " ms");
+                }
+                closeSocket();
+                if (!mmCanceled) cache.recordFailure(address, mmStrategy);
+                throw failure;
+            }
+            long elapsed = System.nanoTime() - begin;
+            mConnectLatency.record(elapsed);
+            cache.recordSuccess(address, mmStrategy, elapsed / 1000000L);
+            return mmSocket;
+        }
+
+        // Racing: report to the owner, and close the socket if another
+        // attempt won meanwhile
+        public void run() {
+            try {
+                connect();
+                if (!mmOwner.won(this)) closeSocket();
+            } catch (IOException e) {
+                mmOwner.lost(e);
+            } finally {
+                mmFinished = true;
+            }
+        }
+
+        void closeSocket() {
+            BluetoothSocket socket = mmSocket;
+            if (socket == null) return;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "unable to close() socket during connection failure", e);
+            }
+        }
+
+        /**
+         * Abort the attempt. Returns at once; a connect() blocked in the
+         * socket is unblocked by closing it on the watchdog.
+         * @return true if it was still running
+         */
+        boolean cancel() {
+            mmCanceled = true;
+            final BluetoothSocket socket = mmSocket;
+            if (socket != null) {
+                closeLater(new Closeable() {
+                    public void close() throws IOException {
+                        socket.close();
+                    }
+                }, System.nanoTime(), null);
+            }
+            return !mmFinished;
+        }
+    }
+
+    /**
+     * This thread runs while attempting to make an outgoing connection
+     * with one or more devices. It runs straight through; the connection
+     * either succeeds or fails. Normally the preferred socket strategy is
+     * tried first and the other one only if that fails. When racing, all
+     * attempts start at once and the first socket to connect wins, so the
+     * time to connect is that of the fastest path rather than the sum of
+     * the failures before it; the others are cancelled.
+     */
+    private class ConnectThread extends Thread {
+        private final Attempt[] mmAttempts;
+        private final boolean mmRace;
+        private final AtomicReference<Attempt> mmWinner = new AtomicReference<Attempt>();
+        private final AtomicInteger mmPending;
+        private final CountDownLatch mmDone = new CountDownLatch(1);
+        private volatile IOException mmFailure;
+        private volatile boolean mmCanceled;
+
+        /**
+         * @param strategy  Preferred strategy of the first device; the
+         *                  others use what the strategy cache prefers
+         */
+        public ConnectThread(BluetoothDevice[] devices, int strategy, boolean race) {
+            mmRace = race;
+            mmAttempts = new Attempt[devices.length * 2];
+            for (int i = 0; i < devices.length; i++) {
+                int preferred = i == 0 ? strategy
+                        : getStrategyCache().getPreferredStrategy(devices[i].getAddress());
+                mmAttempts[2 * i] = new Attempt(this, devices[i], preferred);
+                mmAttempts[2 * i + 1] = new Attempt(this, devices[i], 1 - preferred);
             }
-            mmSocket = tmp;
+            mmPending = new AtomicInteger(mmAttempts.length);
         }
 
         public void run() {
             Log.i(TAG, "BEGIN mConnectThread");
             setName("ConnectThread");
+            long begin = System.nanoTime();
 
             // Always cancel discovery because it will slow down a connection
             mAdapter.cancelDiscovery();
+            // The device may refuse us while the last link is still open
+            awaitTeardown();
 
-            // Make a connection to the BluetoothSocket
-            try {
-                // This is a blocking call and will only return on a
-                // successful connection or an exception
-                mmSocket.connect();
-            } catch (IOException e) {
-                Log.e("device","error- "+e);
-
-                try {
-                    mmSocket =(BluetoothSocket) mmDevice.getClass().getMethod("createRfcommSocket", new Class[] {int.class}).invoke(mmDevice,1);
-                    mmSocket.connect();
-                } catch (IllegalAccessException e1) {
-                    connectionFailed(" "+e1);
-                    e1.printStackTrace();
-                } catch (InvocationTargetException e1) {
-                    e1.printStackTrace();
-                    connectionFailed(" "+e1);
-                } catch (NoSuchMethodException e1) {
-                    e1.printStackTrace();
-                    connectionFailed(" "+e1);
-                } catch (IOException e1) {
-                    e1.printStackTrace();
-                    connectionFailed(" "+e1);
+            Attempt winner = mmRace ? race() : runInTurn();
+            if (winner == null) {
+                if (!mmCanceled && mConnectThread.compareAndSet(this, null)) {
+                    connectionFailed(" " + mmFailure);
                 }
+                return;
+            }
+            mTimeToConnected.record(System.nanoTime() - begin);
 
-                // Close the socket
+            // Reset the ConnectThread because we're done, unless it
+            // was cancelled or replaced meanwhile
+            if (mmCanceled || !mConnectThread.compareAndSet(this, null)) {
+                winner.closeSocket();
+                return;
+            }
+
+            // Start the connected thread
+            connected(winner.mmSocket, winner.mmDevice, winner.mmStrategy);
+        }
+
+        // Try the attempts one after the other, return the first that
+        // connected or null
+        private Attempt runInTurn() {
+            for (Attempt attempt : mmAttempts) {
+                if (mmCanceled) return null;
                 try {
-                    mmSocket.close();
-                } catch (IOException e2) {
-                    Log.e(TAG, "unable to close() socket during connection failure", e2);
+                    attempt.connect();
+                    return attempt;
+                } catch (IOException e) {
+                    mmFailure = e;
                 }
-                // Start the service over to restart listening mode
-                BluetoothCommandService.this.start();
-                return;
             }
+            return null;
+        }
 
-            // Reset the ConnectThread because we're done
-            synchronized (BluetoothCommandService.this) {
-                mConnectThread = null;
+        // Start all attempts, wait for the first to connect or for all to
+        // fail, and cancel the rest
+        private Attempt race() {
+            for (Attempt attempt : mmAttempts) {
+                mWatchdog.execute(attempt);
+            }
+            try {
+                mmDone.await();
+            } catch (InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+            }
+            Attempt winner = mmWinner.get();
+            for (Attempt attempt : mmAttempts) {
+                if (attempt != winner && attempt.cancel() && winner != null) mRaceLosers.increment();
             }
+            if (winner != null && D) {
+                Log.d(TAG, "race won by " + winner.mmDevice.getAddress() + " strategy " + winner.mmStrategy);
+            }
+            return winner;
+        }
 
-            // Start the connected thread
-            connected(mmSocket, mmDevice);
+        /**
+         * Called by a racing attempt whose socket connected.
+         * @return false if another attempt was first, or the race was
+         *         cancelled; the caller closes its socket then
+         */
+        boolean won(Attempt attempt) {
+            if (mmCanceled || !mmWinner.compareAndSet(null, attempt)) return false;
+            mmDone.countDown();
+            return true;
         }
 
+        /**
+         * Called by a racing attempt that failed.
+         */
+        void lost(IOException e) {
+            mmFailure = e;
+            if (mmPending.decrementAndGet() == 0) mmDone.countDown();
+        }
+
+        /**
+         * Abort the connect. Returns at once; sockets blocked in connect()
+         * are closed on the watchdog.
+         */
         public void cancel() {
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
+            mmCanceled = true;
+            for (Attempt attempt : mmAttempts) {
+                attempt.cancel();
             }
+            mmDone.countDown();
         }
     }
 
@@ -302,266 +1087,246 @@ public class BluetoothCommandService {
      * This thread runs during a connection with a remote device.
      * It handles all incoming and outgoing transmissions.
      */
-    private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+    private class ConnectedThread extends Thread
+            implements FrameDecoder.Listener, AckWindow.Sender, LinkMonitor.Callback {
+        private final Transport mmTransport;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
-        int frameSequence=0;
+        private final FrameDecoder mmDecoder = new FrameDecoder(this);
+        private final DecodeThread mmDecodeThread;
+        private final WriteThread mmWriteThread;
+        private final AckWindow mmAckWindow;
+        // Null if idle detection is off
+        private final LinkMonitor mmMonitor;
+        // Sends the cumulative ACK of a window that is not filling up. It
+        // runs on the watchdog, so ACKs do not wait for the main thread.
+        private final Runnable mmAckTimer = new Runnable() {
+            public void run() {
+                long wait = mmAckWindow.flushIfDue(System.nanoTime());
+                if (wait > 0) armAckTimer(wait / 1000000L + 1);
+            }
+        };
+        // Guarded by mmAckTimer
+        private Watchdog.Deadline mmAckDeadline;
+        private boolean mmAckStopped;
+        // The ACK being written, reused for every ACK
+        private final byte[] mmAckFrame = new byte[ContecCodec.ACK_LENGTH];
+        private volatile boolean mmCanceled;
+        private volatile boolean mmStarted;
+        // When the read that is being decoded returned; only used on the
+        // reader thread, others get it passed along with the frame
+        private long mmReadNanos;
+        private long mmResyncs;
+        private long mmDroppedBytes;
         boolean isConfigFrame=true;
 
-        public ConnectedThread(BluetoothSocket socket) {
+        public ConnectedThread(Transport transport) {
             Log.d(TAG, "create ConnectedThread");
-            mmSocket = socket;
+            mmTransport = transport;
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
             // Get the BluetoothSocket input and output streams
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                tmpIn = transport.getInputStream();
+                tmpOut = transport.getOutputStream();
             } catch (IOException e) {
                 Log.e(TAG, "temp sockets not created", e);
             }
 
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
+            mmDecodeThread = new DecodeThread(mHandler, mFramePool, DECODE_QUEUE_SIZE,
+                    DecodeThread.DEFAULT_UPDATE_INTERVAL_MS, mDeviceAddress);
+            mmWriteThread = new WriteThread(tmpOut, WriteThread.DEFAULT_BUFFER_SIZE,
+                    mWriteIdleMs, mWriteMaxLatencyMs);
+            mmWriteThread.setMetrics(mBytesOut, mWriteLatency);
+            mmAckWindow = new AckWindow(this, mAckMode, mAckWindow, mAckDelayMs);
+            mmDecodeThread.setReadingLog(mReadingLog);
+            mmDecodeThread.setVerify(mVerifyDecoder);
+            mDecodeQueue = mmDecodeThread.getQueue();
+            mmMonitor = mIdleMs > 0
+                    ? new LinkMonitor(this, mWatchdog, mIdleMs, mProbeTimeoutMs, mProbe)
+                    : null;
         }
 
         public void run() {
             Log.i(TAG, "BEGIN mConnectedThread");
+            mmStarted = true;
             byte[] buffer = new byte[1024];
+            mmDecodeThread.start();
+            mmWriteThread.start();
+            if (mmMonitor != null) mmMonitor.start(System.nanoTime());
 
             // Keep listening to the InputStream while connected
             while (true) {
                 try {
-                    // Read from the InputStream
+                    // Read from the InputStream, frames are delivered to onFrame()
                     int bytes = mmInStream.read(buffer);
-
-                 //   Log.v("bufferconfig",buffer[1]+"");
-
-                    if(buffer[1]== 0x55 && isConfigFrame)
-                    {
-                        byte[] configBuffer=new byte[]{(byte) 0xa5,0x55,0x01,0x00, (byte) 0xa2};
-                        write(configBuffer);
-                        isConfigFrame=false;
-                    }
-                    else if(!isConfigFrame && Integer.parseInt(String.valueOf(buffer[1]))==-86){
-
-                    //    public static String byteArrayToHex(byte[] a){
-                    StringBuilder sb = new StringBuilder(buffer.length * 2);
-                    for (byte b : buffer)
-                        sb.append(String.format("%02x", b));
-                    String bufferSteing = sb.toString();
-
-
-
-                        Log.v("bytes", bufferSteing);
-
-
-                        byte[] writeBuffer = new byte[]{(byte) 0xa5, (byte) 0xaa, 0x02, 0x00, 0x00, (byte) 0xf7};
-
-
-                      //  write(writeBuffer);
-                    //    isFirstFrame = false;
-
-
-                       /*String frameNo = String.valueOf(buffer[3]);
-                        frameSequence = Integer.parseInt(frameNo, 16);
-
-                        if (frameSequence < 0) {
-                            frameSequence = 1;
-                        }*/
-                        writeBuffer[3] = buffer[3];
-
-                  //      writeBuffer[1]=buffer[1];
-
-
-                        StringBuilder sb01 = new StringBuilder(writeBuffer.length * 2);
-                        for (int i = 0; i < 5; i++)
-                            sb01.append(String.format("%02x", writeBuffer[i]));
-                        String bufferSteing01 = sb01.toString();
-
-
-                        writeBuffer[5] = (byte) CRC_check(bufferSteing01);
-
-
-                                             StringBuilder sb02 = new StringBuilder(writeBuffer.length * 2);
-                        for (byte b : writeBuffer)
-                            sb02.append(String.format("%02x", b));
-                        String bufferSteing02 = sb02.toString();
-
-                        Log.v("hex", String.valueOf(writeBuffer[5]));
-
-                        // for(int i=0;i<5;i++)
-                        //{
-                        Log.v("byte", bufferSteing02);
-                        //  }
-                        StringBuilder sb04 = new StringBuilder(buffer.length * 2-2);
-                            for(int i=0;i<57;i++)
-                            sb04.append(String.format("%02x", buffer[i]));
-
-                        String bufferSteing04 = sb04.toString();
-
-                        Log.v("hexstring", String.valueOf(bufferSteing04));
-
-                         byte crcRead = (byte) CRC_check(bufferSteing04);
-                        
-
-
-                        Log.v("Crc check",buffer[57]+" "+crcRead);
-
-                        if (buffer[57] == crcRead) {
-
-                            write(writeBuffer);
-                        }
-                        else{
-                            writeBuffer[4]=  0x01;
-                            StringBuilder sb05 = new StringBuilder(writeBuffer.length * 2);
-                            for (int i = 0; i < 5; i++)
-                                sb05.append(String.format("%02x", writeBuffer[i]));
-                            String bufferSteing05 = sb05.toString();
-                            Log.v("nakstring",bufferSteing05);
-                            write(writeBuffer);
-
-                           // isConfigFrame=true;
-                        }
-                  //      Log.v("ackstring", bufferSteing01);
-
-                        frameSequence++;
-
-
-                        }
-
-
-                        // Send the obtained bytes to the UI Activity
-                        mHandler.obtainMessage(RemoteBluetooth.MESSAGE_READ, bytes, -1, buffer)
-                                .sendToTarget();
-                    } catch(IOException e){
-                        Log.e(TAG, "disconnected", e);
+                    if (bytes < 0) throw new IOException("end of stream");
+                    mmReadNanos = System.nanoTime();
+                    if (mmMonitor != null) mmMonitor.onRead(mmReadNanos);
+                    mBytesIn.add(bytes);
+                    mmDecoder.feed(buffer, 0, bytes);
+                    countResyncs();
+                } catch (IOException e) {
+                    Log.e(TAG, "disconnected", e);
+                    if (mmMonitor != null) mmMonitor.stop();
+                    stopAckTimer();
+                    mmDecodeThread.cancel();
+                    mmWriteThread.cancel();
+                    // A cancelled or replaced connection was closed on
+                    // purpose, not lost
+                    if (!mmCanceled && mConnectedThread.compareAndSet(this, null)) {
+                        if (mTrace.isEnabled()) dumpTrace();
                         connectionLost();
-                        break;
                     }
+                    break;
                 }
             }
+        }
 
+        private void armAckTimer(long delayMs) {
+            synchronized (mmAckTimer) {
+                if (!mmAckStopped) mmAckDeadline = mWatchdog.schedule(delayMs, mmAckTimer);
+            }
+        }
 
-        public char CRC_check(String dump)
-        {
-            char[] crc_table={
-                    0x00,0x5e,0xbc,0xe2,0x61,0x3f,0xdd,0x83,0xc2,0x9c,0x7e,0x20,0xa3,0xfd,0x1f,0x41,
-                    0x9d,0xc3,0x21,0x7f,0xfc,0xa2,0x40,0x1e,0x5f,0x01,0xe3,0xbd,0x3e,0x60,0x82,0xdc,
-                    0x23,0x7d,0x9f,0xc1,0x42,0x1c,0xfe,0xa0,0xe1,0xbf,0x5d,0x03,0x80,0xde,0x3c,0x62,
-                    0xbe,0xe0,0x02,0x5c,0xdf,0x81,0x63,0x3d,0x7c,0x22,0xc0,0x9e,0x1d,0x43,0xa1,0xff,
-                    0x46,0x18,0xfa,0xa4,0x27,0x79,0x9b,0xc5,0x84,0xda,0x38,0x66,0xe5,0xbb,0x59,0x07,
-                    0xdb,0x85,0x67,0x39,0xba,0xe4,0x06,0x58,0x19,0x47,0xa5,0xfb,0x78,0x26,0xc4,0x9a,
-                    0x65,0x3b,0xd9,0x87,0x04,0x5a,0xb8,0xe6,0xa7,0xf9,0x1b,0x45,0xc6,0x98,0x7a,0x24,
-                    0xf8,0xa6,0x44,0x1a,0x99,0xc7,0x25,0x7b,0x3a,0x64,0x86,0xd8,0x5b,0x05,0xe7,0xb9,
-                    0x8c,0xd2,0x30,0x6e,0xed,0xb3,0x51,0x0f,0x4e,0x10,0xf2,0xac,0x2f,0x71,0x93,0xcd,
-                    0x11,0x4f,0xad,0xf3,0x70,0x2e,0xcc,0x92,0xd3,0x8d,0x6f,0x31,0xb2,0xec,0x0e,0x50,
-                    0xaf,0xf1,0x13,0x4d,0xce,0x90,0x72,0x2c,0x6d,0x33,0xd1,0x8f,0x0c,0x52,0xb0,0xee,
-                    0x32,0x6c,0x8e,0xd0,0x53,0x0d,0xef,0xb1,0xf0,0xae,0x4c,0x12,0x91,0xcf,0x2d,0x73,
-                    0xca,0x94,0x76,0x28,0xab,0xf5,0x17,0x49,0x08,0x56,0xb4,0xea,0x69,0x37,0xd5,0x8b,
-                    0x57,0x09,0xeb,0xb5,0x36,0x68,0x8a,0xd4,0x95,0xcb,0x29,0x77,0xf4,0xaa,0x48,0x16,
-                    0xe9,0xb7,0x55,0x0b,0x88,0xd6,0x34,0x6a,0x2b,0x75,0x97,0xc9,0x4a,0x14,0xf6,0xa8,
-                    0x74,0x2a,0xc8,0x96,0x15,0x4b,0xa9,0xf7,0xb6,0xe8,0x0a,0x54,0xd7,0x89,0x6b,0x35
-            };
-
-
-
-            // String s1 = "a5";
-//	 String s2 = "55";
-
+        private void stopAckTimer() {
+            synchronized (mmAckTimer) {
+                mmAckStopped = true;
+                if (mmAckDeadline != null) mmAckDeadline.cancel();
+            }
+        }
 
-            char buff = 0;
-            String s3= "00";
-            for(int i=0;i<dump.length();i++) {
-                String s1=s3;
+        private void countResyncs() {
+            long resyncs = mmDecoder.getResyncCount();
+            if (resyncs != mmResyncs) {
+                mResyncs.add(resyncs - mmResyncs);
+                mmResyncs = resyncs;
+            }
+            long dropped = mmDecoder.getDroppedByteCount();
+            if (dropped != mmDroppedBytes) {
+                mDroppedBytes.add(dropped - mmDroppedBytes);
+                mmDroppedBytes = dropped;
+            }
+        }
 
-                String s2=dump.substring(i,i+2);
-                int i1=Integer.parseInt(s1,16);
-                int i2=Integer.parseInt(s2,16);
+        public void onFrame(byte[] frame, int length) {
+            mFramesIn.increment();
+            mTrace.record(FrameTrace.EVENT_RX, frame, length);
+            if (ContecCodec.isConfig(frame) && isConfigFrame) {
+                ContecCodec.CONFIG_REPLY.traceTo(mTrace, FrameTrace.EVENT_TX_CONFIG);
+                write(ContecCodec.CONFIG_REPLY);
+                isConfigFrame=false;
+            }
+            else if (!isConfigFrame && ContecCodec.isData(frame)) {
+                if (mmMonitor != null) mmMonitor.onFrame(mmReadNanos);
+                if (mmAckWindow.onFrame(ContecCodec.sequence(frame), mmReadNanos)) {
+                    armAckTimer(mmAckWindow.getAckDelayMs());
+                }
+            }
 
+            // Queue a copy of the frame for the DecodeThread, which hands
+            // the buffer back to the pool once it is parsed
+            mmDecodeThread.offer(mFramePool.copyOf(frame, length), length);
+        }
 
-                int res=i1^i2;
+        public void onCorruptFrame(byte[] frame, int length) {
+            mCrcErrors.increment();
+            mTrace.record(FrameTrace.EVENT_RX_CORRUPT, frame, length);
+            if (!isConfigFrame && ContecCodec.isData(frame)) {
+                mmAckWindow.onCorruptFrame(ContecCodec.sequence(frame), mmReadNanos);
+            }
+        }
 
-                buff=crc_table[res];
-                String hex=String.format("%02x", (int) buff );
-                s3=hex;
+        public void sendAck(int seq, boolean ok, long readNanos) {
+            acknowledge(seq, ok, readNanos);
+        }
 
+        public void sendProbe() {
+            if (D) Log.d(TAG, "link quiet, probing");
+            mProbes.increment();
+            // Not CONFIRM_EQUIPMENT, which starts a download
+            write(ContecCodec.READ_DEVICE_TIME);
+        }
 
-                i++;
+        // Closing the transport makes the blocked read() throw, which
+        // reports the connection lost as any other disconnect
+        public void onLinkDead(long silentMs) {
+            Log.w(TAG, "nothing read for " + silentMs + " ms, link is dead");
+            mLinkTimeouts.increment();
+            try {
+                mmTransport.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close() of dead link failed", e);
             }
-            Log.v("crc",s3);
-            return buff;
         }
 
+        public void setAckMode(int mode, int window, long ackDelayMs) {
+            mmAckWindow.setMode(mode, window, ackDelayMs);
+        }
 
+        public boolean isAckWindowed() {
+            return mmAckWindow.isWindowed();
+        }
 
+        public void setReadingLog(ReadingLog log) {
+            mmDecodeThread.setReadingLog(log);
+        }
 
-        boolean isConnection=true;
+        /**
+         * Send an ACK (or NAK) for the data frame with the given sequence number.
+         * @param readNanos  When the frame was read, see AckWindow.Sender
+         */
+        private void acknowledge(int seq, boolean ok, long readNanos) {
+            // Called from the reader and from the ack timer
+            synchronized (mmAckFrame) {
+                ContecCodec.encodeAck(mmAckFrame, 0, seq, ok);
+                mTrace.record(ok ? FrameTrace.EVENT_TX_ACK : FrameTrace.EVENT_TX_NAK,
+                        mmAckFrame, ContecCodec.ACK_LENGTH);
+                mmWriteThread.enqueue(mmAckFrame, 0, ContecCodec.ACK_LENGTH);
+            }
+            mAckLatency.record(System.nanoTime() - readNanos);
+            if (ok) mAcks.increment(); else mNaks.increment();
+        }
 
         /**
-         * Write to the connected OutStream.
+         * Queue bytes for the WriteThread, which writes them to the
+         * connected OutStream.
          * @param buffer  The bytes to write
          */
         public void write(byte[] buffer) {
-            try {
-                String bufferstring="a5550100a2";
-             //   byte [] buffer03=new byte[]{(byte) 0xa5, Byte.parseByte("ffaa"),0x01,0x00, (byte) 0xa2};
-                byte buffer01[]=bufferstring.getBytes();
-                byte [] buffer02=new byte[]{(byte) 0xa5,0x55,0x01,0x00, (byte) 0xa2};
-
-
-                //for(int i=0;i<100000;i++) {
-                    mmOutStream.write(buffer);
-                  //  Thread.sleep(1000);
-                //}
-                //
-                //Share the sent message back to the UI Activity
-//                mHandler.obtainMessage(BluetoothChat.MESSAGE_WRITE, -1, -1, buffer)
-//                        .sendToTarget();
-            } catch (Exception e) {
-                Log.e(TAG, "Exception during write", e);
-            }
-        }
-        
-     /*   public void write(int out) {
-        	try {
-
-        	    byte[] buffer01=new byte[1024];
-                String bufferstring="a5550100a2";
-                byte [] buffer03=new byte[]{(byte) 0xa5, (byte) 0x55,0x02,0x00,0x00, (byte) 0x1c};
-                byte [] buffer02=new byte[]{(byte) 0xa5,0x55,0x01,0x00, (byte) 0xa2};
-
-                if(isConnection) {
-                    mmOutStream.write(buffer02);
-                    isConnection=false;
-                }
-                else{
-                  //  for(int i=0;i<1000000;i++) {
-                        mmOutStream.write(buffer03);
+            mmWriteThread.enqueue(buffer);
+        }
 
-                    //    Thread.sleep(1000);
-                    //}
-                }
+        /**
+         * Queue a constant command or frame for the WriteThread.
+         */
+        public void write(ContecCodec.Template template) {
+            mmWriteThread.enqueue(template);
+        }
 
-                // Share the sent message back to the UI Activity
-//                mHandler.obtainMessage(BluetoothChat.MESSAGE_WRITE, -1, -1, buffer)
-//                        .sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+        public void setWriteBounds(long idleMs, long maxLatencyMs) {
+            mmWriteThread.setBounds(idleMs, maxLatencyMs);
         }
-*/
+
+        /**
+         * Close the connection. Returns at once; draining the writer and
+         * closing the transport, which can block on a stuck peer, happen on
+         * the watchdog.
+         */
         public void cancel() {
-            try {
-            	mmOutStream.write(EXIT_CMD);
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
-            }
+            mmCanceled = true;
+            long begin = System.nanoTime();
+            if (mmMonitor != null) mmMonitor.stop();
+            stopAckTimer();
+            mmDecodeThread.abort();
+            // A thread that never ran has no writer to say goodbye with
+            boolean started = mmStarted;
+            if (started) mmWriteThread.enqueue(new byte[]{(byte) EXIT_CMD});
+            mmWriteThread.cancel();
+            closeLater(mmTransport, begin, started ? mmWriteThread : null);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,90 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.os.Handler;
+
+/**
+ * Makes the sessions of a {@link ConnectionManager} as
+ * BluetoothCommandServices that share one Handler, one strategy cache and
+ * one reading log. The Handler tells the sessions' messages apart by
+ * {@link RemoteBluetooth#DEVICE_ADDRESS} in their data Bundle.
+ */
+public class BluetoothSessionFactory implements ConnectionManager.Factory {
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final BluetoothAdapter mAdapter = BluetoothAdapter.getDefaultAdapter();
+    private final ConnectStrategyCache mStrategyCache;
+    private final CopyOnWriteArrayList<BluetoothSession> mSessions =
+            new CopyOnWriteArrayList<BluetoothSession>();
+    private volatile ReadingLog mReadingLog;
+
+    /**
+     * @param context  The UI Activity Context
+     * @param handler  A Handler to send messages of all sessions to
+     */
+    public BluetoothSessionFactory(Context context, Handler handler) {
+        mContext = context;
+        mHandler = handler;
+        mStrategyCache = new ConnectStrategyCache(context);
+    }
+
+    public ConnectionManager.Session create(String address, Executor executor,
+            final ConnectionManager.StateListener listener) {
+        BluetoothCommandService service = new BluetoothCommandService(mContext, mHandler, executor);
+        service.setStrategyCache(mStrategyCache);
+        service.setReadingLog(mReadingLog);
+        service.addStateListener(new ConnectionState.Listener() {
+            public void onStateChanged(int oldState, int newState) {
+                listener.onStateChanged(oldState, newState);
+            }
+        });
+        BluetoothSession session = new BluetoothSession(address, service);
+        mSessions.add(session);
+        return session;
+    }
+
+    /**
+     * Store the readings of every session in one log, or in none if null.
+     */
+    public void setReadingLog(ReadingLog log) {
+        mReadingLog = log;
+        for (BluetoothSession session : mSessions) {
+            session.mService.setReadingLog(log);
+        }
+    }
+
+    private class BluetoothSession implements ConnectionManager.Session {
+        final String mAddress;
+        final BluetoothCommandService mService;
+
+        BluetoothSession(String address, BluetoothCommandService service) {
+            mAddress = address;
+            mService = service;
+        }
+
+        public void connect() {
+            int state = mService.getState();
+            if (state == BluetoothCommandService.STATE_CONNECTED
+                    || state == BluetoothCommandService.STATE_CONNECTING) return;
+            mService.connect(mAdapter.getRemoteDevice(mAddress));
+        }
+
+        public void stop() {
+            mSessions.remove(this);
+            mService.stop();
+        }
+
+        public int getState() {
+            return mService.getState();
+        }
+
+        public void write(byte[] out) {
+            mService.write(out);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.bluetooth.BluetoothSocket;
+
+/**
+ * {@link Transport} over a connected RFCOMM BluetoothSocket.
+ */
+public class BluetoothSocketTransport implements Transport {
+    private final BluetoothSocket mSocket;
+
+    public BluetoothSocketTransport(BluetoothSocket socket) {
+        mSocket = socket;
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    public void close() throws IOException {
+        mSocket.close();
+    }
+
+    public BluetoothSocket getSocket() {
+        return mSocket;
+    }
+}
@@ -0,0 +1,165 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.util.HashMap;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers, per device address, how each RFCOMM socket strategy
+ * (BluetoothCommandService.STRATEGY_*) has done: successes, failures and
+ * the time connect() took when it worked. The numbers are kept in
+ * SharedPreferences so the first connect after an app restart already
+ * starts with the strategy that has historically been fastest.
+ */
+public class ConnectStrategyCache {
+
+    private static final String PREFS_NAME = "connect_strategies";
+    static final int STRATEGY_COUNT = 2;
+
+    /**
+     * Connect statistics of one strategy for one device.
+     */
+    public static class Stats {
+        public int successes;
+        public int failures;
+        public long totalConnectMs;
+        public long lastConnectMs = -1;
+
+        /** Mean time of a successful connect, or -1 if there was none. */
+        public long getMeanConnectMs() {
+            return successes == 0 ? -1 : totalConnectMs / successes;
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+    private final HashMap<String, Stats[]> mStats = new HashMap<String, Stats[]>();
+
+    /**
+     * @param context  Used to open the preferences, may be null to keep
+     *                 the statistics in memory only
+     */
+    public ConnectStrategyCache(Context context) {
+        mPrefs = context == null ? null : context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Return the strategy to try first for a device: the one with the
+     * lowest mean connect time among those that connected more often than
+     * they failed, or STRATEGY_SERVICE_RECORD if nothing is known.
+     */
+    public synchronized int getPreferredStrategy(String address) {
+        Stats[] stats = get(address);
+        int best = BluetoothCommandService.STRATEGY_SERVICE_RECORD;
+        long bestMs = Long.MAX_VALUE;
+        for (int i = 0; i < STRATEGY_COUNT; i++) {
+            Stats s = stats[i];
+            if (s.successes == 0 || s.successes < s.failures) continue;
+            long mean = s.getMeanConnectMs();
+            if (mean < bestMs) {
+                bestMs = mean;
+                best = i;
+            }
+        }
+        // A strategy that only ever failed is worth skipping
+        if (bestMs == Long.MAX_VALUE && stats[best].failures > 0 && stats[1 - best].failures == 0) {
+            best = 1 - best;
+        }
+        return best;
+    }
+
+    /**
+     * Record a successful connect.
+     * @param connectMs  Time connect() blocked
+     */
+    public synchronized void recordSuccess(String address, int strategy, long connectMs) {
+        Stats s = get(address)[strategy];
+        s.successes++;
+        s.totalConnectMs += connectMs;
+        s.lastConnectMs = connectMs;
+        save(address, strategy, s);
+    }
+
+    /**
+     * Record a failed connect.
+     */
+    public synchronized void recordFailure(String address, int strategy) {
+        Stats s = get(address)[strategy];
+        s.failures++;
+        save(address, strategy, s);
+    }
+
+    /**
+     * Return a copy of the statistics of one strategy for a device.
+     */
+    public synchronized Stats getStats(String address, int strategy) {
+        Stats s = get(address)[strategy];
+        Stats copy = new Stats();
+        copy.successes = s.successes;
+        copy.failures = s.failures;
+        copy.totalConnectMs = s.totalConnectMs;
+        copy.lastConnectMs = s.lastConnectMs;
+        return copy;
+    }
+
+    /**
+     * Return how often a device connected, with any strategy.
+     */
+    public synchronized int getSuccessCount(String address) {
+        int count = 0;
+        for (Stats s : get(address)) count += s.successes;
+        return count;
+    }
+
+    /**
+     * Forget everything known about a device.
+     */
+    public synchronized void clear(String address) {
+        mStats.remove(address);
+        if (mPrefs == null) return;
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (int i = 0; i < STRATEGY_COUNT; i++) {
+            String key = key(address, i);
+            editor.remove(key + ".ok").remove(key + ".fail").remove(key + ".ms").remove(key + ".last");
+        }
+        editor.commit();
+    }
+
+    private Stats[] get(String address) {
+        Stats[] stats = mStats.get(address);
+        if (stats == null) {
+            stats = new Stats[STRATEGY_COUNT];
+            for (int i = 0; i < STRATEGY_COUNT; i++) {
+                stats[i] = load(address, i);
+            }
+            mStats.put(address, stats);
+        }
+        return stats;
+    }
+
+    private static String key(String address, int strategy) {
+        return address + "." + strategy;
+    }
+
+    private Stats load(String address, int strategy) {
+        Stats s = new Stats();
+        if (mPrefs == null) return s;
+        String key = key(address, strategy);
+        s.successes = mPrefs.getInt(key + ".ok", 0);
+        s.failures = mPrefs.getInt(key + ".fail", 0);
+        s.totalConnectMs = mPrefs.getLong(key + ".ms", 0);
+        s.lastConnectMs = mPrefs.getLong(key + ".last", -1);
+        return s;
+    }
+
+    private void save(String address, int strategy, Stats s) {
+        if (mPrefs == null) return;
+        String key = key(address, strategy);
+        mPrefs.edit()
+                .putInt(key + ".ok", s.successes)
+                .putInt(key + ".fail", s.failures)
+                .putLong(key + ".ms", s.totalConnectMs)
+                .putLong(key + ".last", s.lastConnectMs)
+                .commit();
+    }
+}
@@ -0,0 +1,278 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs one session per device address so that a handset can collect from
+ * several thermometers at once, up to a fixed number of sessions.
+ *
+ * Sessions are made by a {@link Factory}; {@link BluetoothSessionFactory}
+ * makes BluetoothCommandServices. Each keeps its own state machine and
+ * frame pipeline. Their connect and read loops run on one pool owned by
+ * the manager, sized for every admitted session; the pool hands each task
+ * straight to a thread and never queues it, and a task that finds every
+ * pooled thread busy gets a thread of its own. Decode and write loops do
+ * not use the pool at all, so they never wait behind a blocked read.
+ *
+ * Every state change of a session is passed on to the manager's listeners
+ * with the session's address. Plain Java, so it can be checked off the
+ * device.
+ */
+public class ConnectionManager {
+
+    /** Active links a Bluetooth classic piconet supports */
+    public static final int DEFAULT_MAX_SESSIONS = 7;
+    // Connect and read loops of a session, each possibly still unwinding
+    // from a cancelled attempt while the next one runs
+    static final int POOLED_LOOPS_PER_SESSION = 4;
+    private static final long KEEP_ALIVE_S = 30;
+    // BluetoothCommandService.STATE_NONE, which is not referred to so that
+    // this compiles without Android
+    private static final int STATE_NONE = 0;
+
+    /**
+     * One device's connection.
+     */
+    public interface Session {
+        /** Connect to the device unless connected or connecting already. */
+        void connect();
+
+        void stop();
+
+        /** One of the BluetoothCommandService STATE_ constants */
+        int getState();
+
+        void write(byte[] out);
+    }
+
+    /**
+     * Told about every state change of a session.
+     */
+    public interface StateListener {
+        void onStateChanged(int oldState, int newState);
+    }
+
+    /**
+     * Makes the session of a device.
+     */
+    public interface Factory {
+        /**
+         * @param executor  Runs the session's connect and read loops
+         * @param listener  To be told about every state change
+         */
+        Session create(String address, Executor executor, StateListener listener);
+    }
+
+    /**
+     * Told about every state change of every session.
+     */
+    public interface Listener {
+        void onStateChanged(String address, int oldState, int newState);
+    }
+
+    private final Factory mFactory;
+    private final int mMaxSessions;
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mOverflowThreads = new AtomicLong();
+    private final HashMap<String, Session> mSessions = new HashMap<String, Session>();
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    public ConnectionManager(Factory factory) {
+        this(factory, DEFAULT_MAX_SESSIONS);
+    }
+
+    /**
+     * @param factory      Makes the sessions
+     * @param maxSessions  Most devices connected at the same time
+     */
+    public ConnectionManager(Factory factory, int maxSessions) {
+        if (maxSessions < 1) throw new IllegalArgumentException("maxSessions < 1");
+        mFactory = factory;
+        mMaxSessions = maxSessions;
+        final SessionThreadFactory threads = new SessionThreadFactory();
+        mExecutor = new ThreadPoolExecutor(0, maxSessions * POOLED_LOOPS_PER_SESSION,
+                KEEP_ALIVE_S, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), threads,
+                new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // Never queue a loop behind others that may block
+                        if (executor.isShutdown()) return;
+                        mOverflowThreads.incrementAndGet();
+                        threads.newThread(r).start();
+                    }
+                });
+    }
+
+    /**
+     * Connect to a device, reusing its session if there is one.
+     * @return The session of the device
+     * @throws IllegalStateException if all sessions are in use
+     */
+    public synchronized Session connect(String address) {
+        Session session = mSessions.get(address);
+        if (session == null) {
+            if (mSessions.size() >= mMaxSessions) {
+                throw new IllegalStateException("all " + mMaxSessions + " sessions in use");
+            }
+            session = mFactory.create(address, mExecutor, new Tagger(address));
+            mSessions.put(address, session);
+        }
+        session.connect();
+        return session;
+    }
+
+    /**
+     * Stop the session of a device and forget it.
+     */
+    public void disconnect(String address) {
+        Session session;
+        synchronized (this) {
+            session = mSessions.remove(address);
+        }
+        if (session != null) session.stop();
+    }
+
+    /**
+     * Return the session of a device, or null.
+     */
+    public synchronized Session getSession(String address) {
+        return mSessions.get(address);
+    }
+
+    /**
+     * Return the addresses of all sessions.
+     */
+    public synchronized List<String> getAddresses() {
+        return new ArrayList<String>(mSessions.keySet());
+    }
+
+    /**
+     * Return the state of a device's session, STATE_NONE if there is none.
+     */
+    public synchronized int getState(String address) {
+        Session session = mSessions.get(address);
+        return session == null ? STATE_NONE : session.getState();
+    }
+
+    /**
+     * Return the most advanced state over all sessions: STATE_CONNECTED if
+     * any device is connected, else STATE_CONNECTING if any is connecting...
+     */
+    public synchronized int getAggregateState() {
+        int state = STATE_NONE;
+        for (Session session : mSessions.values()) {
+            state = Math.max(state, session.getState());
+        }
+        return state;
+    }
+
+    public synchronized int getSessionCount() {
+        return mSessions.size();
+    }
+
+    /**
+     * Return the number of sessions in the given state.
+     */
+    public synchronized int countInState(int state) {
+        int n = 0;
+        for (Session session : mSessions.values()) {
+            if (session.getState() == state) n++;
+        }
+        return n;
+    }
+
+    public int getMaxSessions() {
+        return mMaxSessions;
+    }
+
+    /**
+     * Return the number of loops that found every pooled thread busy and
+     * got a thread of their own.
+     */
+    public long getOverflowThreadCount() {
+        return mOverflowThreads.get();
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Write to one device, if it is connected.
+     */
+    public void write(String address, byte[] out) {
+        Session session = getSession(address);
+        if (session != null) session.write(out);
+    }
+
+    /**
+     * Write to every connected device.
+     */
+    public void writeAll(byte[] out) {
+        for (Session session : snapshot()) {
+            session.write(out);
+        }
+    }
+
+    /**
+     * Stop every session but keep the pool for new ones.
+     */
+    public void stopAll() {
+        List<Session> sessions;
+        synchronized (this) {
+            sessions = snapshot();
+            mSessions.clear();
+        }
+        for (Session session : sessions) {
+            session.stop();
+        }
+    }
+
+    /**
+     * Stop every session and release the pool. The manager cannot be
+     * used afterwards.
+     */
+    public void shutdown() {
+        stopAll();
+        mExecutor.shutdown();
+    }
+
+    private synchronized List<Session> snapshot() {
+        return new ArrayList<Session>(mSessions.values());
+    }
+
+    // Passes a session's state changes on with its address
+    private class Tagger implements StateListener {
+        private final String mAddress;
+
+        Tagger(String address) {
+            mAddress = address;
+        }
+
+        public void onStateChanged(int oldState, int newState) {
+            for (Listener l : mListeners) l.onStateChanged(mAddress, oldState, newState);
+        }
+    }
+
+    private static class SessionThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "BluetoothSession-" + mCount.incrementAndGet());
+        }
+    }
+}
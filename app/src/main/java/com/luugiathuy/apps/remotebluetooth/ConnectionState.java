@@ -0,0 +1,116 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The connection state of a BluetoothCommandService (its STATE_ constants)
+ * as a lock-free state machine. Every change is a compare-and-set that is
+ * only made if the transition is legal:
+ * <pre>
+ *   NONE       -> LISTEN, CONNECTING
+ *   LISTEN     -> NONE, CONNECTING, CONNECTED
+ *   CONNECTING -> NONE, LISTEN, CONNECTED
+ *   CONNECTED  -> NONE, LISTEN, CONNECTING
+ * </pre>
+ * Every state goes to NONE by stop() and to LISTEN by start(); a failed
+ * attempt and a lost link without reconnect fall back to LISTEN too.
+ * CONNECTING is entered by connect() or a reconnect of a lost link.
+ * CONNECTED is only reached from a connect attempt or by a socket accepted
+ * while listening: a stopped service takes no connection.
+ *
+ * Staying in a state is not a transition and is never reported: a new
+ * attempt or a reconnect retry while CONNECTING, a connection replaced
+ * while CONNECTED.
+ *
+ * Listeners are called on the thread that made the transition, after it
+ * was made. Listeners of transitions racing on different threads may be
+ * called out of order; get() is always current.
+ */
+public class ConnectionState {
+
+    /**
+     * Told about every transition.
+     */
+    public interface Listener {
+        void onStateChanged(int oldState, int newState);
+    }
+
+    // Bit n of LEGAL[s] is set if s -> n is a legal transition
+    private static final int[] LEGAL = {
+        // NONE
+        bits(BluetoothCommandService.STATE_LISTEN, BluetoothCommandService.STATE_CONNECTING),
+        // LISTEN
+        bits(BluetoothCommandService.STATE_NONE, BluetoothCommandService.STATE_CONNECTING,
+                BluetoothCommandService.STATE_CONNECTED),
+        // CONNECTING
+        bits(BluetoothCommandService.STATE_NONE, BluetoothCommandService.STATE_LISTEN,
+                BluetoothCommandService.STATE_CONNECTED),
+        // CONNECTED
+        bits(BluetoothCommandService.STATE_NONE, BluetoothCommandService.STATE_LISTEN,
+                BluetoothCommandService.STATE_CONNECTING),
+    };
+
+    private final AtomicInteger mState = new AtomicInteger(BluetoothCommandService.STATE_NONE);
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    private static int bits(int... states) {
+        int mask = 0;
+        for (int s : states) mask |= 1 << s;
+        return mask;
+    }
+
+    /**
+     * Return true if from -> to is a legal transition; from -> from never is.
+     */
+    public static boolean isLegal(int from, int to) {
+        return from >= 0 && from < LEGAL.length && (LEGAL[from] & (1 << to)) != 0;
+    }
+
+    public int get() {
+        return mState.get();
+    }
+
+    /**
+     * Move from expect to update if the state is still expect and the
+     * transition is legal.
+     * @return true if the transition was made
+     */
+    public boolean compareAndSet(int expect, int update) {
+        if (!isLegal(expect, update) || !mState.compareAndSet(expect, update)) return false;
+        notifyListeners(expect, update);
+        return true;
+    }
+
+    /**
+     * Move to a state from whatever the current state is, if legal. If the
+     * state already is update nothing happens.
+     * @return The state before, or -1 if the current state cannot move to
+     *         the new one
+     */
+    public int moveTo(int update) {
+        while (true) {
+            int current = mState.get();
+            if (current == update) return current;
+            if (!isLegal(current, update)) return -1;
+            if (mState.compareAndSet(current, update)) {
+                notifyListeners(current, update);
+                return current;
+            }
+        }
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void notifyListeners(int oldState, int newState) {
+        for (Listener l : mListeners) {
+            l.onStateChanged(oldState, newState);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.util.TimeZone;
+
+/**
+ * The bytes the host sends to a Contec ear thermometer, and the fields it
+ * reads out of the frames it gets back (see {@link FrameDecoder} for the
+ * frame layout).
+ *
+ * Constant frames and commands are encoded once into immutable
+ * {@link Template}s, queued with WriteThread.enqueue(Template). ACKs, NAKs
+ * and the set-time command depend on their arguments and are encoded
+ * straight into a buffer the caller reuses. The accessors read fields in
+ * place from a frame the decoder delivered. None of it allocates.
+ *
+ * Commands are not 0xA5 frames: a command code followed by its arguments
+ * in the device's 7 bit form, which is a byte holding the high bits of the
+ * arguments followed by the arguments with the high bit set. This matches
+ * what the SDK's DeviceCommand builds.
+ *
+ * Plain Java, so that the simulator and the benchmarks can use it off the
+ * device.
+ */
+public final class ContecCodec {
+
+    /** Length of an ACK or NAK frame */
+    public static final int ACK_LENGTH = 6;
+    /** Length of a command without arguments */
+    public static final int COMMAND_LENGTH = 3;
+    /** Length of the set-time command */
+    public static final int TIME_COMMAND_LENGTH = 6;
+
+    // Command codes
+    public static final byte CMD_CONFIRM_EQUIPMENT = 0x11;
+    public static final byte CMD_VERIFY_TIME = 0x12;
+    public static final byte CMD_READ_DEVICE_TIME = 0x13;
+    public static final byte CMD_DELETE_DATA = 0x14;
+    public static final byte CMD_CLOSE_BLUETOOTH = 0x15;
+    public static final byte CMD_DISCONNECT_BLUETOOTH = 0x16;
+    public static final byte CMD_QUERY_DATA_COUNT = 0x17;
+    public static final byte CMD_REQUEST_ONE = 0x18;
+    public static final byte CMD_REQUEST_ALL = 0x19;
+
+    // Byte 4 of an ACK frame
+    private static final byte STATUS_OK = 0x00;
+    private static final byte STATUS_NAK = 0x01;
+
+    // 2000-01-01 00:00 UTC, the device counts seconds from there in local time
+    private static final long EPOCH_2000_MS = 946684800000L;
+
+    /**
+     * Encoded bytes that never change. The array is private to the
+     * template; it is only ever copied out.
+     */
+    public static final class Template {
+        private final byte[] mBytes;
+
+        Template(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        public int length() {
+            return mBytes.length;
+        }
+
+        public byte byteAt(int index) {
+            return mBytes[index];
+        }
+
+        /**
+         * Copy the bytes to out at offset.
+         * @return The offset after them
+         */
+        public int copyTo(byte[] out, int offset) {
+            System.arraycopy(mBytes, 0, out, offset, mBytes.length);
+            return offset + mBytes.length;
+        }
+
+        // For WriteThread.enqueue(Template), which copies it
+        byte[] array() {
+            return mBytes;
+        }
+
+        public void traceTo(FrameTrace trace, int event) {
+            trace.record(event, mBytes, mBytes.length);
+        }
+
+        @Override
+        public String toString() {
+            return Hex.toString(mBytes, 0, mBytes.length);
+        }
+    }
+
+    /** The host's answer to the device's config frame */
+    public static final Template CONFIG_REPLY = frame(FrameDecoder.TYPE_CONFIG, (byte) 0x00);
+
+    public static final Template CONFIRM_EQUIPMENT = command(CMD_CONFIRM_EQUIPMENT);
+    public static final Template READ_DEVICE_TIME = command(CMD_READ_DEVICE_TIME);
+    public static final Template DELETE_DATA = command(CMD_DELETE_DATA);
+    public static final Template CLOSE_BLUETOOTH = command(CMD_CLOSE_BLUETOOTH);
+    public static final Template DISCONNECT_BLUETOOTH = command(CMD_DISCONNECT_BLUETOOTH);
+    public static final Template QUERY_DATA_COUNT = command(CMD_QUERY_DATA_COUNT);
+    public static final Template REQUEST_ONE = command(CMD_REQUEST_ONE);
+    public static final Template REQUEST_ALL = command(CMD_REQUEST_ALL);
+
+    private ContecCodec() {
+    }
+
+    /**
+     * Write the ACK (ok) or NAK of a data frame to out at offset.
+     * @return The offset after it, offset + ACK_LENGTH
+     */
+    public static int encodeAck(byte[] out, int offset, int seq, boolean ok) {
+        out[offset] = FrameDecoder.HEADER;
+        out[offset + 1] = FrameDecoder.TYPE_DATA;
+        out[offset + 2] = 0x02;
+        out[offset + 3] = (byte) seq;
+        out[offset + 4] = ok ? STATUS_OK : STATUS_NAK;
+        out[offset + 5] = (byte) Crc8.compute(out, offset, 5);
+        return offset + ACK_LENGTH;
+    }
+
+    /**
+     * Write the command that sets the device clock to out at offset.
+     * @param nowMs  The time to set, ms since the epoch
+     * @param zone   The device shows local time of this zone
+     * @return The offset after it, offset + TIME_COMMAND_LENGTH
+     */
+    public static int encodeVerifyTime(byte[] out, int offset, long nowMs, TimeZone zone) {
+        long seconds = (nowMs - EPOCH_2000_MS + zone.getOffset(EPOCH_2000_MS)) / 1000;
+        out[offset] = CMD_VERIFY_TIME;
+        out[offset + 2] = (byte) seconds;
+        out[offset + 3] = (byte) (seconds >> 8);
+        out[offset + 4] = (byte) (seconds >> 16);
+        out[offset + 5] = (byte) (seconds >> 24);
+        pack7(out, offset + 1, 5);
+        return offset + TIME_COMMAND_LENGTH;
+    }
+
+    /**
+     * Return the type of a frame, FrameDecoder.TYPE_CONFIG or TYPE_DATA.
+     */
+    public static byte type(byte[] frame) {
+        return frame[1];
+    }
+
+    public static boolean isConfig(byte[] frame) {
+        return frame[1] == FrameDecoder.TYPE_CONFIG;
+    }
+
+    public static boolean isData(byte[] frame) {
+        return frame[1] == FrameDecoder.TYPE_DATA;
+    }
+
+    /**
+     * Return the sequence number of a data frame or of an ACK (0..255).
+     */
+    public static int sequence(byte[] frame) {
+        return frame[3] & 0xff;
+    }
+
+    /**
+     * Return true if an ACK frame is a NAK.
+     */
+    public static boolean isNak(byte[] frame) {
+        return frame[4] != STATUS_OK;
+    }
+
+    /**
+     * Return true if a frame of this length is an ACK or NAK.
+     */
+    public static boolean isAck(byte[] frame, int length) {
+        return length == ACK_LENGTH && frame[1] == FrameDecoder.TYPE_DATA;
+    }
+
+    private static Template frame(byte type, byte payload) {
+        byte[] bytes = {FrameDecoder.HEADER, type, 0x01, payload, 0};
+        bytes[4] = (byte) Crc8.compute(bytes, 0, 4);
+        return new Template(bytes);
+    }
+
+    // Commands without arguments carry a single 0x01
+    private static Template command(byte code) {
+        byte[] bytes = {code, 0, 0x01};
+        pack7(bytes, 1, 2);
+        return new Template(bytes);
+    }
+
+    /**
+     * Turn buffer[offset + 1 .. offset + length - 1] into the device's 7 bit
+     * form, putting their high bits into buffer[offset], the last argument's
+     * highest.
+     */
+    private static void pack7(byte[] buffer, int offset, int length) {
+        int high = 0;
+        for (int i = offset + length - 1; i > offset; i--) {
+            high = (high << 1) | ((buffer[i] & 0x80) >> 7);
+            buffer[i] |= 0x80;
+        }
+        buffer[offset] = (byte) (high | 0x80);
+    }
+}
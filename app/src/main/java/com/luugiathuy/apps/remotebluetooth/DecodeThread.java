@@ -0,0 +1,244 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+import android.os.Handler;
+import android.os.Message;
+import android.util.Log;
+
+import cn.com.contec.jar.eartemperture.DevicePackManager;
+import cn.com.contec.jar.eartemperture.EarTempertureDataJar;
+
+/**
+ * This thread runs the {@link ReadingDecoder} for one connection, so
+ * parsing never happens on the UI thread.
+ *
+ * The reader thread queues frames (leased from a {@link FramePool}) with
+ * {@link #offer(byte[], int)}; this thread parses them, gives the buffers
+ * back and collects the finished readings. Readings are posted to the UI
+ * as one MESSAGE_DATA per update interval at most, however fast frames
+ * arrive, as a {@link ReadingColumns} with the decoder's last status in
+ * arg1. If a {@link ReadingLog} is set, every reading is also appended to
+ * it.
+ *
+ * With {@link #setVerify(boolean)} the SDK's DevicePackManager decodes the
+ * same frames alongside, and every status or reading that differs is
+ * logged.
+ */
+public class DecodeThread extends Thread implements ReadingDecoder.Sink {
+    private static final String TAG = "DecodeThread";
+
+    /** Default spacing of UI updates, one display frame */
+    public static final long DEFAULT_UPDATE_INTERVAL_MS = 16;
+
+    // Readings expected in one UI update, the batch grows beyond
+    private static final int BATCH_CAPACITY = 16;
+
+    private final Handler mHandler;
+    private final FramePool mFramePool;
+    private final FrameQueue mQueue;
+    private final long mIntervalNanos;
+    private final ReadingDecoder mDecoder = new ReadingDecoder(this);
+    private final String mDeviceAddress;
+    private final long mDeviceId;
+    private volatile ReadingLog mReadingLog;
+    // mReadingLog as read for the frame being decoded
+    private ReadingLog mLog;
+
+    // The SDK's decoder, while verifying
+    private volatile boolean mVerify;
+    private DevicePackManager mPackManager;
+    private int mChecked;
+    private SimpleDateFormat mDateFormat;
+    private volatile long mMismatches;
+
+    // Readings and status collected since the last UI update
+    private ReadingColumns mBatch = new ReadingColumns(BATCH_CAPACITY);
+    private int mStatus;
+    private boolean mFlushPending;
+    private long mNextFlush;
+    private long mLastFlush;
+
+    private volatile boolean mRunning = true;
+
+    /**
+     * @param handler         Handler of the UI Activity
+     * @param pool            Pool the queued frames were leased from
+     * @param queueCapacity   Number of frames that may wait for decoding
+     * @param updateInterval  Minimum time between two UI updates, in ms
+     * @param address         Device address added to the messages, or null
+     */
+    public DecodeThread(Handler handler, FramePool pool, int queueCapacity, long updateInterval,
+                        String address) {
+        mHandler = handler;
+        mFramePool = pool;
+        mQueue = new FrameQueue(queueCapacity);
+        mIntervalNanos = updateInterval * 1000000L;
+        mDeviceAddress = address;
+        mDeviceId = ReadingLog.deviceId(address);
+        mLastFlush = System.nanoTime() - mIntervalNanos;
+        setName("DecodeThread");
+    }
+
+    /**
+     * Queue a frame for decoding. Must only be called from the reader
+     * thread; blocks while the queue is full.
+     * @return false if the thread was cancelled and the frame was dropped
+     */
+    public boolean offer(byte[] frame, int length) {
+        if (!mQueue.put(frame, length)) {
+            mFramePool.release(frame);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Store the readings of this connection in a log, or in none if null.
+     */
+    public void setReadingLog(ReadingLog log) {
+        mReadingLog = log;
+    }
+
+    /**
+     * Decode every frame with the SDK as well and log where it disagrees
+     * with the {@link ReadingDecoder}. Costs an object per reading and
+     * frame; meant for checking traces, not for production. Call before
+     * start(), the two only agree if both saw the whole stream.
+     */
+    public void setVerify(boolean verify) {
+        mVerify = verify;
+    }
+
+    /**
+     * Return the number of frames the SDK decoded differently since
+     * verifying started.
+     */
+    public long getMismatchCount() {
+        return mMismatches;
+    }
+
+    /**
+     * Return the queue between the reader and this thread, for its statistics.
+     */
+    public FrameQueue getQueue() {
+        return mQueue;
+    }
+
+    public void run() {
+        Log.i(TAG, "BEGIN mDecodeThread");
+
+        while (mRunning) {
+            long wait = -1;
+            if (mFlushPending) {
+                wait = Math.max(0, mNextFlush - System.nanoTime());
+            }
+            if (mQueue.await(wait)) {
+                byte[] frame = mQueue.peek();
+                int length = mQueue.peekLength();
+                mQueue.remove();
+                decode(frame, length);
+            }
+            if (mFlushPending && System.nanoTime() - mNextFlush >= 0) {
+                flush();
+            }
+            if (mQueue.isClosed() && mQueue.isEmpty()) break;
+        }
+        if (mFlushPending) flush();
+
+        // Give back whatever was still queued
+        byte[] frame;
+        while ((frame = mQueue.peek()) != null) {
+            mQueue.remove();
+            mFramePool.release(frame);
+        }
+    }
+
+    private void decode(byte[] frame, int length) {
+        int first = mBatch.size();
+        int status;
+        mLog = mReadingLog;
+        try {
+            status = mDecoder.feed(frame, length);
+            if (mVerify) verify(frame, length, status, first);
+        } finally {
+            mFramePool.release(frame);
+        }
+
+        if (status != ReadingDecoder.STATUS_NONE) mStatus = status;
+        boolean changed = status != ReadingDecoder.STATUS_NONE || mBatch.size() > first;
+        if (changed && !mFlushPending) {
+            mFlushPending = true;
+            mNextFlush = mLastFlush + mIntervalNanos;
+        }
+    }
+
+    public void onReading(long timeMs, int tenths) {
+        double value = tenths / 10.0;
+        long position = mLog != null ? mLog.append(mDeviceId, timeMs, value) : -1;
+        mBatch.add(mDeviceId, timeMs, value, position);
+    }
+
+    /**
+     * Run the SDK on the same frame and compare its status and the readings
+     * it added with those of the decoder, from mBatch[first] on.
+     */
+    private void verify(byte[] frame, int length, int status, int first) {
+        if (mPackManager == null) {
+            mPackManager = new DevicePackManager();
+            mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        }
+        int expected;
+        try {
+            expected = mPackManager.arrangeMessage(frame, length);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "arrangeMessage() failed", e);
+            expected = -1;
+        }
+        ArrayList<EarTempertureDataJar> datas = mPackManager.m_DeviceDatas;
+        int added = datas == null ? 0 : datas.size() - mChecked;
+        boolean same = expected == status && added == mBatch.size() - first;
+        for (int i = 0; same && i < added; i++) {
+            EarTempertureDataJar data = datas.get(mChecked + i);
+            // The float column holds tenths exactly enough to get them back
+            int tenths = Math.round(mBatch.getValue(first + i) * 10);
+            same = data.m_data == tenths / 10.0
+                    && mDateFormat.format(new Date(mBatch.getTime(first + i))).equals(data.m_saveDate);
+        }
+        if (datas != null) mChecked = datas.size();
+        if (!same) {
+            mMismatches++;
+            Log.w(TAG, "SDK decodes " + Hex.toString(frame, 0, length) + " as status " + expected
+                    + " with " + added + " readings, decoder as " + status + " with "
+                    + (mBatch.size() - first));
+        }
+    }
+
+    private void flush() {
+        ReadingColumns batch = mBatch;
+        mBatch = new ReadingColumns(BATCH_CAPACITY);
+        Message msg = mHandler.obtainMessage(RemoteBluetooth.MESSAGE_DATA, mStatus, -1, batch);
+        if (mDeviceAddress != null) msg.getData().putString(RemoteBluetooth.DEVICE_ADDRESS, mDeviceAddress);
+        msg.sendToTarget();
+        mStatus = 0;
+        mFlushPending = false;
+        mLastFlush = System.nanoTime();
+    }
+
+    /**
+     * Stop decoding once the queued frames are done.
+     */
+    public void cancel() {
+        mQueue.close();
+    }
+
+    /**
+     * Stop decoding immediately and drop queued frames.
+     */
+    public void abort() {
+        mRunning = false;
+        mQueue.close();
+    }
+}
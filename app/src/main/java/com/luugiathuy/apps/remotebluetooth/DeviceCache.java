@@ -0,0 +1,214 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import android.bluetooth.BluetoothClass;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Devices found by discovery, one entry per address with the name, device
+ * class, RSSI and time it was last seen. Kept in SharedPreferences so the
+ * device list can show known devices as soon as it opens, and only start
+ * the slow discovery (which also slows down open connections) once what is
+ * known is stale.
+ *
+ * A device found again updates its entry in place. Changes are written in
+ * flush(), not on every sighting.
+ */
+public class DeviceCache {
+
+    private static final String PREFS_NAME = "device_cache";
+    private static final String KEY_LAST_DISCOVERY = "last_discovery";
+
+    // Discovery is needed again after this long
+    public static final long DEFAULT_MAX_AGE_MS = 10 * 60 * 1000L;
+    // Entries not seen for this long are forgotten
+    static final long FORGET_MS = 30L * 24 * 60 * 60 * 1000;
+    static final int MAX_ENTRIES = 64;
+    public static final short RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    /**
+     * What is known about one device.
+     */
+    public static class Entry {
+        public final String address;
+        public String name;
+        public int deviceClass = -1;        // BluetoothClass.getDeviceClass(), -1 if unknown
+        public short rssi = RSSI_UNKNOWN;   // dBm
+        public long lastSeen;               // ms since the epoch, 0 if never found
+        public boolean spp;                 // SDP record known to list the serial port UUID
+
+        Entry(String address) {
+            this.address = address;
+        }
+
+        public boolean isThermometer() {
+            return deviceClass == BluetoothClass.Device.HEALTH_THERMOMETER;
+        }
+
+        /** Name and address on two lines, as the device list shows it. */
+        @Override
+        public String toString() {
+            return (name != null ? name : address) + "\n" + address;
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    private final HashSet<String> mDirty = new HashSet<String>();
+    private long mLastDiscovery;
+
+    /**
+     * @param context  Used to open the preferences, may be null to keep
+     *                 the cache in memory only
+     */
+    public DeviceCache(Context context) {
+        mPrefs = context == null ? null : context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        load(System.currentTimeMillis());
+    }
+
+    /**
+     * Record that discovery found a device.
+     * @param rssi  RSSI_UNKNOWN if the broadcast had none
+     * @return The device's entry, the same object for every call with the
+     *         same address
+     */
+    public synchronized Entry update(String address, String name, int deviceClass, short rssi,
+            long now) {
+        Entry e = get(address);
+        mDirty.add(address);
+        if (name != null) e.name = name;
+        if (deviceClass >= 0) e.deviceClass = deviceClass;
+        if (rssi != RSSI_UNKNOWN) e.rssi = rssi;
+        e.lastSeen = now;
+        return e;
+    }
+
+    /**
+     * Record that a device's SDP record lists the serial port service.
+     */
+    public synchronized void setSpp(String address, boolean spp) {
+        Entry e = get(address);
+        if (e.spp == spp) return;
+        e.spp = spp;
+        if (e.lastSeen > 0) mDirty.add(address);
+    }
+
+    /**
+     * Return the entry of an address, creating one that was never seen if
+     * there is none.
+     */
+    public synchronized Entry get(String address) {
+        Entry e = mEntries.get(address);
+        if (e == null) {
+            e = new Entry(address);
+            mEntries.put(address, e);
+        }
+        return e;
+    }
+
+    /**
+     * Return the devices seen within maxAgeMs, thermometers first, then
+     * most recently seen first.
+     */
+    public synchronized ArrayList<Entry> getSeen(long now, long maxAgeMs) {
+        ArrayList<Entry> seen = new ArrayList<Entry>();
+        for (Entry e : mEntries.values()) {
+            if (e.lastSeen > 0 && now - e.lastSeen <= maxAgeMs) seen.add(e);
+        }
+        Collections.sort(seen, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                if (a.isThermometer() != b.isThermometer()) return a.isThermometer() ? -1 : 1;
+                return a.lastSeen > b.lastSeen ? -1 : a.lastSeen < b.lastSeen ? 1 : 0;
+            }
+        });
+        return seen;
+    }
+
+    /**
+     * Return true if no discovery finished within maxAgeMs.
+     */
+    public synchronized boolean isStale(long now, long maxAgeMs) {
+        return now - mLastDiscovery > maxAgeMs;
+    }
+
+    /**
+     * Record that a discovery ran to the end.
+     */
+    public synchronized void discoveryFinished(long now) {
+        mLastDiscovery = now;
+        if (mPrefs != null) mPrefs.edit().putLong(KEY_LAST_DISCOVERY, now).commit();
+    }
+
+    /**
+     * Write the entries changed since the last flush, and forget the
+     * oldest entries above MAX_ENTRIES.
+     */
+    public synchronized void flush() {
+        if (mEntries.size() > MAX_ENTRIES) {
+            ArrayList<Entry> all = new ArrayList<Entry>(mEntries.values());
+            Collections.sort(all, new Comparator<Entry>() {
+                public int compare(Entry a, Entry b) {
+                    return a.lastSeen < b.lastSeen ? -1 : a.lastSeen > b.lastSeen ? 1 : 0;
+                }
+            });
+            for (int i = 0; i < all.size() - MAX_ENTRIES; i++) forget(all.get(i).address);
+        }
+        if (mPrefs == null || mDirty.isEmpty()) {
+            mDirty.clear();
+            return;
+        }
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (String address : mDirty) {
+            Entry e = mEntries.get(address);
+            if (e == null || e.lastSeen == 0) {
+                remove(editor, address);
+                continue;
+            }
+            editor.putString(address + ".name", e.name)
+                    .putInt(address + ".class", e.deviceClass)
+                    .putInt(address + ".rssi", e.rssi)
+                    .putBoolean(address + ".spp", e.spp)
+                    .putLong(address + ".seen", e.lastSeen);
+        }
+        editor.commit();
+        mDirty.clear();
+    }
+
+    private void forget(String address) {
+        mEntries.remove(address);
+        mDirty.add(address);
+    }
+
+    private static void remove(SharedPreferences.Editor editor, String address) {
+        editor.remove(address + ".name").remove(address + ".class")
+                .remove(address + ".rssi").remove(address + ".seen").remove(address + ".spp");
+    }
+
+    private void load(long now) {
+        if (mPrefs == null) return;
+        mLastDiscovery = mPrefs.getLong(KEY_LAST_DISCOVERY, 0);
+        for (Map.Entry<String, ?> pref : mPrefs.getAll().entrySet()) {
+            String key = pref.getKey();
+            if (!key.endsWith(".seen")) continue;
+            String address = key.substring(0, key.length() - ".seen".length());
+            long seen = mPrefs.getLong(key, 0);
+            if (now - seen > FORGET_MS) {
+                forget(address);
+                continue;
+            }
+            Entry e = get(address);
+            e.name = mPrefs.getString(address + ".name", null);
+            e.deviceClass = mPrefs.getInt(address + ".class", -1);
+            e.rssi = (short) mPrefs.getInt(address + ".rssi", RSSI_UNKNOWN);
+            e.spp = mPrefs.getBoolean(address + ".spp", false);
+            e.lastSeen = seen;
+        }
+    }
+}
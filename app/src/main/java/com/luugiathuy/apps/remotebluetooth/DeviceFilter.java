@@ -0,0 +1,124 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.regex.Pattern;
+
+import android.bluetooth.BluetoothClass;
+
+/**
+ * Picks the thermometers among discovered devices and ranks them.
+ *
+ * A device is a candidate if its device class is a health device, its name
+ * matches the name pattern, or it connected before. The score adds up, in
+ * this order of weight: connect history, device class, name, the SPP
+ * service UUID in its cached SDP record, and signal strength. A candidate
+ * is "sure" if it connected before, or both class and name match; the
+ * device list stops discovery as soon as it finds a sure one.
+ */
+public class DeviceFilter {
+
+    // Names Contec ear thermometers advertise
+    public static final String DEFAULT_NAME_PATTERN = "(?i).*(contec|thermo|temp|\\bTP[- ]?\\d).*";
+
+    static final int SCORE_HISTORY = 1000;
+    static final int SCORE_CLASS = 400;
+    static final int SCORE_NAME = 200;
+    static final int SCORE_SPP = 100;
+    // RSSI from -100 dBm (0) to -40 dBm (60) and up
+    private static final int RSSI_FLOOR = -100;
+    private static final int RSSI_RANGE = 60;
+
+    private final Pattern mNamePattern;
+    private final ConnectStrategyCache mHistory;
+
+    /**
+     * @param history  Where connect successes are known from, may be null
+     */
+    public DeviceFilter(ConnectStrategyCache history) {
+        this(DEFAULT_NAME_PATTERN, history);
+    }
+
+    public DeviceFilter(String namePattern, ConnectStrategyCache history) {
+        mNamePattern = Pattern.compile(namePattern);
+        mHistory = history;
+    }
+
+    public boolean isCandidate(DeviceCache.Entry e) {
+        return e.address != null
+                && (matchesClass(e) || matchesName(e) || getConnectCount(e) > 0);
+    }
+
+    /**
+     * Return true if a device is certainly a thermometer worth stopping
+     * discovery for.
+     */
+    public boolean isSure(DeviceCache.Entry e) {
+        return isCandidate(e) && (getConnectCount(e) > 0 || (matchesClass(e) && matchesName(e)));
+    }
+
+    /**
+     * Return the score of a device, higher is better; 0 if it is no
+     * candidate.
+     */
+    public int score(DeviceCache.Entry e) {
+        if (!isCandidate(e)) return 0;
+        int score = 1;
+        if (getConnectCount(e) > 0) score += SCORE_HISTORY + Math.min(getConnectCount(e), 100);
+        if (matchesClass(e)) score += SCORE_CLASS;
+        if (matchesName(e)) score += SCORE_NAME;
+        if (e.spp) score += SCORE_SPP;
+        if (e.rssi != DeviceCache.RSSI_UNKNOWN) {
+            score += Math.max(0, Math.min(e.rssi - RSSI_FLOOR, RSSI_RANGE));
+        }
+        return score;
+    }
+
+    /**
+     * Return the candidates among entries, best first.
+     */
+    public ArrayList<DeviceCache.Entry> rank(Collection<DeviceCache.Entry> entries) {
+        ArrayList<DeviceCache.Entry> ranked = new ArrayList<DeviceCache.Entry>();
+        for (DeviceCache.Entry e : entries) {
+            if (isCandidate(e)) ranked.add(e);
+        }
+        Collections.sort(ranked, new Comparator<DeviceCache.Entry>() {
+            public int compare(DeviceCache.Entry a, DeviceCache.Entry b) {
+                return score(b) - score(a);
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * Return the best candidate, or null if there is none.
+     */
+    public DeviceCache.Entry best(Collection<DeviceCache.Entry> entries) {
+        DeviceCache.Entry best = null;
+        int bestScore = 0;
+        for (DeviceCache.Entry e : entries) {
+            int s = score(e);
+            if (s > bestScore) {
+                bestScore = s;
+                best = e;
+            }
+        }
+        return best;
+    }
+
+    private boolean matchesClass(DeviceCache.Entry e) {
+        if (e.deviceClass < 0) return false;
+        return e.deviceClass == BluetoothClass.Device.HEALTH_THERMOMETER
+                || (e.deviceClass & 0x1F00) == BluetoothClass.Device.Major.HEALTH;
+    }
+
+    private boolean matchesName(DeviceCache.Entry e) {
+        return e.name != null && mNamePattern.matcher(e.name).matches();
+    }
+
+    private int getConnectCount(DeviceCache.Entry e) {
+        return mHistory == null ? 0 : mHistory.getSuccessCount(e.address);
+    }
+}
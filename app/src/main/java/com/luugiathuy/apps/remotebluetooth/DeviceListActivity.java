@@ -16,16 +16,21 @@
 
 package com.luugiathuy.apps.remotebluetooth;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Set;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.ParcelUuid;
 import android.util.Log;
 import android.view.View;
 import android.view.Window;
@@ -34,7 +39,6 @@ import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ListView;
-import android.widget.TextView;
 import android.widget.AdapterView.OnItemClickListener;
 
 /**
@@ -42,19 +46,46 @@ import android.widget.AdapterView.OnItemClickListener;
  * devices detected in the area after discovery. When a device is chosen
  * by the user, the MAC address of the device is sent back to the parent
  * Activity in the result Intent.
+ *
+ * Devices found before are listed from a {@link DeviceCache} right away.
+ * Discovery only starts by itself when the cache is stale; the scan button
+ * always starts it. Each device is listed once however often discovery
+ * reports it.
+ *
+ * With EXTRA_FILTER only thermometers are listed, ranked by a
+ * {@link DeviceFilter}, and discovery stops once a sure one is found. With
+ * EXTRA_AUTO_CONNECT as well, the best thermometer is returned without
+ * asking: at once if one is already sure from what is cached, else when
+ * discovery finds a sure one or ends. If none of them is sure, the next
+ * best candidates are returned in EXTRA_CANDIDATES too, for the caller to
+ * race them.
  */
 public class DeviceListActivity extends Activity {
     // Debugging
     private static final String TAG = "DeviceListActivity";
     private static final boolean D = true;
 
-    // Return Intent extra
+    // Return Intent extras
     public static String EXTRA_DEVICE_ADDRESS = "device_address";
+    public static final String EXTRA_CANDIDATES = "candidates"; // String[], the chosen one first
+    // Intent extras: list only thermometers, pick the best by itself
+    public static final String EXTRA_FILTER = "filter";
+    public static final String EXTRA_AUTO_CONNECT = "auto_connect";
 
     // Member fields
     private BluetoothAdapter mBtAdapter;
-    private ArrayAdapter<String> mPairedDevicesArrayAdapter;
-    private ArrayAdapter<String> mNewDevicesArrayAdapter;
+    private ArrayAdapter<DeviceCache.Entry> mPairedDevicesArrayAdapter;
+    private ArrayAdapter<DeviceCache.Entry> mNewDevicesArrayAdapter;
+    private DeviceCache mDeviceCache;
+    // Addresses in either list
+    private final HashSet<String> mListed = new HashSet<String>();
+    // Null unless EXTRA_FILTER was given
+    private DeviceFilter mFilter;
+    private boolean mAutoConnect;
+    // Discovery was cancelled before it ended by itself
+    private boolean mStoppedEarly;
+    // A device was returned, the Activity is finishing
+    private boolean mChosen;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -78,8 +109,8 @@ public class DeviceListActivity extends Activity {
 
         // Initialize array adapters. One for already paired devices and
         // one for newly discovered devices
-        mPairedDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
-        mNewDevicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.device_name);
+        mPairedDevicesArrayAdapter = new ArrayAdapter<DeviceCache.Entry>(this, R.layout.device_name);
+        mNewDevicesArrayAdapter = new ArrayAdapter<DeviceCache.Entry>(this, R.layout.device_name);
 
         // Find and set up the ListView for paired devices
         ListView pairedListView = (ListView) findViewById(R.id.paired_devices);
@@ -101,6 +132,11 @@ public class DeviceListActivity extends Activity {
 
         // Get the local Bluetooth adapter
         mBtAdapter = BluetoothAdapter.getDefaultAdapter();
+        mDeviceCache = new DeviceCache(this);
+        if (getIntent().getBooleanExtra(EXTRA_FILTER, false)) {
+            mFilter = new DeviceFilter(new ConnectStrategyCache(this));
+            mAutoConnect = getIntent().getBooleanExtra(EXTRA_AUTO_CONNECT, false);
+        }
 
         // Get a set of currently paired devices
         Set<BluetoothDevice> pairedDevices = mBtAdapter.getBondedDevices();
@@ -109,12 +145,92 @@ public class DeviceListActivity extends Activity {
         if (pairedDevices.size() > 0) {
             findViewById(R.id.title_paired_devices).setVisibility(View.VISIBLE);
             for (BluetoothDevice device : pairedDevices) {
-                mPairedDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+                DeviceCache.Entry entry = mDeviceCache.get(device.getAddress());
+                if (entry.name == null) entry.name = device.getName();
+                if (hasSpp(device)) mDeviceCache.setSpp(entry.address, true);
+                if (mFilter != null && !mFilter.isCandidate(entry)) continue;
+                mListed.add(entry.address);
+                mPairedDevicesArrayAdapter.add(entry);
+            }
+        }
+        if (mPairedDevicesArrayAdapter.getCount() == 0) {
+            mPairedDevicesArrayAdapter.add(placeholder(R.string.none_paired));
+        }
+
+        // Show the devices found recently without waiting for discovery
+        long now = System.currentTimeMillis();
+        ArrayList<DeviceCache.Entry> seen = mDeviceCache.getSeen(now, DeviceCache.FORGET_MS);
+        if (mFilter != null) seen = mFilter.rank(seen);
+        for (DeviceCache.Entry entry : seen) {
+            if (mListed.add(entry.address)) mNewDevicesArrayAdapter.add(entry);
+        }
+        if (mNewDevicesArrayAdapter.getCount() > 0) {
+            findViewById(R.id.title_new_devices).setVisibility(View.VISIBLE);
+        }
+
+        if (mAutoConnect) {
+            // A thermometer that connected before needs no discovery
+            DeviceCache.Entry best = mFilter.best(getListed());
+            if (best != null && mFilter.isSure(best)) {
+                choose(best.address);
+                return;
+            }
+        }
+        if (mAutoConnect || mDeviceCache.isStale(now, DeviceCache.DEFAULT_MAX_AGE_MS)) {
+            doDiscovery();
+            scanButton.setVisibility(View.GONE);
+        }
+    }
+
+    // Every device in the two lists
+    private ArrayList<DeviceCache.Entry> getListed() {
+        ArrayList<DeviceCache.Entry> listed = new ArrayList<DeviceCache.Entry>();
+        for (int i = 0; i < mPairedDevicesArrayAdapter.getCount(); i++) {
+            listed.add(mPairedDevicesArrayAdapter.getItem(i));
+        }
+        for (int i = 0; i < mNewDevicesArrayAdapter.getCount(); i++) {
+            listed.add(mNewDevicesArrayAdapter.getItem(i));
+        }
+        return listed;
+    }
+
+    // The chosen device and, unless it is sure, the next best candidates,
+    // as many as BluetoothCommandService races
+    private String[] getRaceCandidates(String chosen) {
+        ArrayList<String> candidates = new ArrayList<String>();
+        candidates.add(chosen);
+        if (!mFilter.isSure(mDeviceCache.get(chosen))) {
+            for (DeviceCache.Entry entry : mFilter.rank(getListed())) {
+                if (candidates.size() == BluetoothCommandService.MAX_RACE_DEVICES) break;
+                if (!chosen.equals(entry.address)) candidates.add(entry.address);
             }
-        } else {
-            String noDevices = getResources().getText(R.string.none_paired).toString();
-            mPairedDevicesArrayAdapter.add(noDevices);
         }
+        return candidates.toArray(new String[candidates.size()]);
+    }
+
+    // True if the device's cached SDP record lists the serial port service.
+    // getUuids() is API 15; below, the service is unknown and the device
+    // is kept like one without a cached record
+    private static boolean hasSpp(BluetoothDevice device) {
+        if (Build.VERSION.SDK_INT < 15) return false;
+        ParcelUuid[] uuids = device.getUuids();
+        if (uuids == null) return false;
+        for (ParcelUuid uuid : uuids) {
+            if (BluetoothCommandService.MY_UUID.equals(uuid.getUuid())) return true;
+        }
+        return false;
+    }
+
+    // An entry without address that only shows a message
+    private DeviceCache.Entry placeholder(int resId) {
+        DeviceCache.Entry entry = new DeviceCache.Entry(null) {
+            @Override
+            public String toString() {
+                return name;
+            }
+        };
+        entry.name = getResources().getText(resId).toString();
+        return entry;
     }
 
     @Override
@@ -128,6 +244,7 @@ public class DeviceListActivity extends Activity {
 
         // Unregister broadcast listeners
         this.unregisterReceiver(mReceiver);
+        mDeviceCache.flush();
     }
 
     /**
@@ -154,23 +271,45 @@ public class DeviceListActivity extends Activity {
 
     // The on-click listener for all devices in the ListViews
     private OnItemClickListener mDeviceClickListener = new OnItemClickListener() {
-        public void onItemClick(AdapterView<?> av, View v, int arg2, long arg3) {
-            // Cancel discovery because it's costly and we're about to connect
+        public void onItemClick(AdapterView<?> av, View v, int position, long id) {
+            // Get the device MAC address; the "none found" entries have none
+            String address = ((DeviceCache.Entry) av.getItemAtPosition(position)).address;
+            if (address != null) choose(address);
+        }
+    };
+
+    // Return a device to the parent Activity
+    private void choose(String address) {
+        if (mChosen) return;
+        mChosen = true;
+        if (D) Log.d(TAG, "choose " + address);
+
+        // Cancel discovery because it's costly and we're about to connect
+        if (mBtAdapter.isDiscovering()) {
+            mStoppedEarly = true;
             mBtAdapter.cancelDiscovery();
+        }
 
-            // Get the device MAC address, which is the last 17 chars in the View
-            String info = ((TextView) v).getText().toString();
-            String address = info.substring(info.length() - 17);
+        // Create the result Intent and include the MAC address
+        Intent intent = new Intent();
+        intent.putExtra(EXTRA_DEVICE_ADDRESS, address);
+        if (mAutoConnect) {
+            String[] candidates = getRaceCandidates(address);
+            if (candidates.length > 1) intent.putExtra(EXTRA_CANDIDATES, candidates);
+        }
 
-            // Create the result Intent and include the MAC address
-            Intent intent = new Intent();
-            intent.putExtra(EXTRA_DEVICE_ADDRESS, address);
+        // Set result and finish this Activity
+        setResult(Activity.RESULT_OK, intent);
+        finish();
+    }
 
-            // Set result and finish this Activity
-            setResult(Activity.RESULT_OK, intent);
-            finish();
+    // Drop "none found" from a scan before, now that something was found
+    private void removePlaceholder() {
+        if (mNewDevicesArrayAdapter.getCount() == 1
+                && mNewDevicesArrayAdapter.getItem(0).address == null) {
+            mNewDevicesArrayAdapter.clear();
         }
-    };
+    }
 
     // The BroadcastReceiver that listens for discovered devices and
     // changes the title when discovery is finished
@@ -183,17 +322,49 @@ public class DeviceListActivity extends Activity {
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 // Get the BluetoothDevice object from the Intent
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                // If it's already paired, skip it, because it's been listed already
-                if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-                    mNewDevicesArrayAdapter.add(device.getName() + "\n" + device.getAddress());
+                BluetoothClass btClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+                short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, DeviceCache.RSSI_UNKNOWN);
+                DeviceCache.Entry entry = mDeviceCache.update(device.getAddress(), device.getName(),
+                        btClass != null ? btClass.getDeviceClass() : -1, rssi,
+                        System.currentTimeMillis());
+                if (hasSpp(device)) mDeviceCache.setSpp(entry.address, true);
+                if (mFilter != null && !mFilter.isCandidate(entry)) return;
+                // A device already listed (paired, cached or found before)
+                // is only refreshed
+                if (mListed.add(entry.address)) {
+                    removePlaceholder();
+                    mNewDevicesArrayAdapter.add(entry);
+                } else {
+                    mNewDevicesArrayAdapter.notifyDataSetChanged();
+                }
+                if (mFilter != null && mFilter.isSure(entry)) {
+                    // Found what we are looking for, the rest of the
+                    // discovery would only delay it
+                    if (mAutoConnect) {
+                        choose(entry.address);
+                    } else if (mBtAdapter.isDiscovering()) {
+                        mStoppedEarly = true;
+                        mBtAdapter.cancelDiscovery();
+                    }
                 }
             // When discovery is finished, change the Activity title
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
                 setProgressBarIndeterminateVisibility(false);
                 setTitle(R.string.select_device);
+                // A cancelled discovery did not see everything around
+                if (!mStoppedEarly) mDeviceCache.discoveryFinished(System.currentTimeMillis());
+                mStoppedEarly = false;
+                mDeviceCache.flush();
+                if (mChosen) return;
+                if (mAutoConnect) {
+                    DeviceCache.Entry best = mFilter.best(getListed());
+                    if (best != null) {
+                        choose(best.address);
+                        return;
+                    }
+                }
                 if (mNewDevicesArrayAdapter.getCount() == 0) {
-                    String noDevices = getResources().getText(R.string.none_found).toString();
-                    mNewDevicesArrayAdapter.add(noDevices);
+                    mNewDevicesArrayAdapter.add(placeholder(R.string.none_found));
                 }
             }
         }
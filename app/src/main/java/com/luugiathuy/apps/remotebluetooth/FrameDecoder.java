@@ -0,0 +1,227 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+/**
+ * Incremental decoder for the Contec 0xA5 frames coming over the RFCOMM
+ * stream. A frame looks like
+ * <pre>
+ *     0xA5 | type | len | payload[len] | crc
+ * </pre>
+ * where type is 0x55 (config) or 0xAA (data/ACK) and crc is the
+ * {@link Crc8} of everything before it. A 58 byte data frame therefore
+ * carries len = 54.
+ *
+ * Bytes are fed in whatever chunks the socket returns them and are kept
+ * in a ring buffer until a whole frame is available, so frames split or
+ * merged across reads come out the same. When a candidate frame fails
+ * (bad type, implausible length or CRC mismatch) only its header byte is
+ * dropped and the search restarts at the next byte, so a false 0xA5 in
+ * line noise never swallows a valid frame that follows it.
+ *
+ * A CRC mismatch is only reported for a candidate at a frame boundary,
+ * where the previous frame, good or corrupt, said the next one starts.
+ * Anywhere else the candidate is a 0xA5 inside a frame the decoder lost
+ * track of, and it is skipped silently: reporting it would have the
+ * device NAKed for a frame it never sent.
+ *
+ * Not thread safe; it is meant to be driven by the reader thread only.
+ */
+public class FrameDecoder {
+
+    public static final byte HEADER = (byte) 0xa5;
+    public static final byte TYPE_CONFIG = 0x55;
+    public static final byte TYPE_DATA = (byte) 0xaa;
+
+    /** Header, type, length and CRC bytes around the payload */
+    public static final int OVERHEAD = 4;
+    /** Total length of a data frame sent by the thermometer */
+    public static final int DATA_FRAME_LENGTH = 58;
+    /** Largest payload accepted before a candidate is treated as noise */
+    public static final int DEFAULT_MAX_PAYLOAD = 64;
+    /** Largest frame the decoder delivers with the default payload limit */
+    public static final int DEFAULT_MAX_FRAME = DEFAULT_MAX_PAYLOAD + OVERHEAD;
+
+    // States of the decoder
+    private static final int STATE_HUNT = 0;    // looking for 0xA5
+    private static final int STATE_TYPE = 1;    // header seen, waiting for the type
+    private static final int STATE_LENGTH = 2;  // type seen, waiting for the length
+    private static final int STATE_BODY = 3;    // waiting for payload and CRC
+
+    /**
+     * Receives the frames found by the decoder. The array passed in is
+     * owned by the decoder and only valid for the duration of the call.
+     */
+    public interface Listener {
+        /** A frame with a valid CRC, frame[0] is the 0xA5 header */
+        void onFrame(byte[] frame, int length);
+        /** A well formed frame at a frame boundary whose CRC did not match */
+        void onCorruptFrame(byte[] frame, int length);
+    }
+
+    private final Listener mListener;
+    private final int mMaxPayload;
+
+    // Ring buffer of bytes not yet consumed; mHead is the candidate frame start
+    private final byte[] mRing;
+    private final int mMask;
+    private int mHead;
+    private int mCount;
+    // Stream offsets of mHead and of where the next frame should start
+    private long mPosition;
+    private long mBoundary;
+
+    // Linear copy of the current frame handed to the listener
+    private final byte[] mFrame;
+
+    private int mState = STATE_HUNT;
+    private int mFrameLength;
+
+    // Statistics
+    private long mFrames;
+    private long mCrcErrors;
+    private long mDroppedBytes;
+    private long mResyncs;
+
+    public FrameDecoder(Listener listener) {
+        this(listener, DEFAULT_MAX_PAYLOAD);
+    }
+
+    /**
+     * @param listener    Receives the decoded frames
+     * @param maxPayload  Largest len field accepted (1..255)
+     */
+    public FrameDecoder(Listener listener, int maxPayload) {
+        if (listener == null) throw new IllegalArgumentException("listener == null");
+        if (maxPayload < 1 || maxPayload > 255) {
+            throw new IllegalArgumentException("maxPayload out of range: " + maxPayload);
+        }
+        mListener = listener;
+        mMaxPayload = maxPayload;
+        int capacity = 1;
+        while (capacity < 2 * (maxPayload + OVERHEAD)) capacity <<= 1;
+        mRing = new byte[capacity];
+        mMask = capacity - 1;
+        mFrame = new byte[maxPayload + OVERHEAD];
+    }
+
+    /**
+     * Feed bytes as returned by InputStream.read(). Complete frames are
+     * delivered to the listener before this returns.
+     */
+    public void feed(byte[] buffer, int offset, int length) {
+        while (length > 0) {
+            int n = Math.min(length, mRing.length - mCount);
+            int tail = (mHead + mCount) & mMask;
+            int first = Math.min(n, mRing.length - tail);
+            System.arraycopy(buffer, offset, mRing, tail, first);
+            if (n > first) System.arraycopy(buffer, offset + first, mRing, 0, n - first);
+            mCount += n;
+            offset += n;
+            length -= n;
+            decode();
+        }
+    }
+
+    /** Forget any partially received frame. */
+    public void reset() {
+        mHead = 0;
+        mCount = 0;
+        mBoundary = mPosition;
+        mState = STATE_HUNT;
+    }
+
+    /** Number of bytes buffered but not yet part of a delivered frame. */
+    public int pending() {
+        return mCount;
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    public long getCrcErrorCount() {
+        return mCrcErrors;
+    }
+
+    public long getDroppedByteCount() {
+        return mDroppedBytes;
+    }
+
+    public long getResyncCount() {
+        return mResyncs;
+    }
+
+    private byte peek(int index) {
+        return mRing[(mHead + index) & mMask];
+    }
+
+    private void drop(int n) {
+        mHead = (mHead + n) & mMask;
+        mCount -= n;
+        mPosition += n;
+    }
+
+    // Give up on the candidate at mHead and hunt from the next byte
+    private void resync() {
+        drop(1);
+        mDroppedBytes++;
+        mResyncs++;
+        mState = STATE_HUNT;
+    }
+
+    private void decode() {
+        while (true) {
+            switch (mState) {
+                case STATE_HUNT:
+                    while (mCount > 0 && peek(0) != HEADER) {
+                        drop(1);
+                        mDroppedBytes++;
+                    }
+                    if (mCount == 0) return;
+                    mState = STATE_TYPE;
+                    break;
+                case STATE_TYPE:
+                    if (mCount < 2) return;
+                    byte type = peek(1);
+                    if (type != TYPE_CONFIG && type != TYPE_DATA) {
+                        resync();
+                    } else {
+                        mState = STATE_LENGTH;
+                    }
+                    break;
+                case STATE_LENGTH:
+                    if (mCount < 3) return;
+                    int len = peek(2) & 0xff;
+                    if (len > mMaxPayload) {
+                        resync();
+                    } else {
+                        mFrameLength = len + OVERHEAD;
+                        mState = STATE_BODY;
+                    }
+                    break;
+                case STATE_BODY:
+                    if (mCount < mFrameLength) return;
+                    int first = Math.min(mFrameLength, mRing.length - mHead);
+                    System.arraycopy(mRing, mHead, mFrame, 0, first);
+                    if (mFrameLength > first) {
+                        System.arraycopy(mRing, 0, mFrame, first, mFrameLength - first);
+                    }
+                    if (Crc8.check(mFrame, 0, mFrameLength)) {
+                        drop(mFrameLength);
+                        mBoundary = mPosition;
+                        mState = STATE_HUNT;
+                        mFrames++;
+                        mListener.onFrame(mFrame, mFrameLength);
+                    } else if (mPosition == mBoundary) {
+                        // Only the payload is known to be bad, trust the length
+                        mBoundary = mPosition + mFrameLength;
+                        mCrcErrors++;
+                        resync();
+                        mListener.onCorruptFrame(mFrame, mFrameLength);
+                    } else {
+                        resync();
+                    }
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+/**
+ * Fixed set of frame buffers handed from the reader thread to consumers.
+ *
+ * The reader leases a buffer, copies a decoded frame into it and posts it;
+ * the consumer hands it back with {@link #release(byte[])} once it is done
+ * with the bytes. This way a buffer is never overwritten while someone is
+ * still reading it, and steady state traffic allocates nothing.
+ *
+ * If every buffer is out (the consumer fell behind) a fresh array is
+ * returned instead so no frame is lost; such leases are counted as
+ * exhaustion and the extra buffer is only kept on release if the pool has
+ * room for it.
+ */
+public class FramePool {
+
+    private final byte[][] mFree;
+    private final int mBufferSize;
+    private int mFreeCount;
+
+    // Statistics, guarded by this
+    private long mLeases;
+    private long mExhausted;
+    private int mOutstanding;
+    private int mMaxOutstanding;
+
+    /**
+     * @param buffers     Number of pooled buffers
+     * @param bufferSize  Size of every buffer, at least the largest frame
+     */
+    public FramePool(int buffers, int bufferSize) {
+        if (buffers < 1) throw new IllegalArgumentException("buffers < 1");
+        mFree = new byte[buffers][];
+        for (int i = 0; i < buffers; i++) {
+            mFree[i] = new byte[bufferSize];
+        }
+        mFreeCount = buffers;
+        mBufferSize = bufferSize;
+    }
+
+    /**
+     * Take a buffer from the pool. Never returns null.
+     */
+    public synchronized byte[] lease() {
+        mLeases++;
+        mOutstanding++;
+        if (mOutstanding > mMaxOutstanding) mMaxOutstanding = mOutstanding;
+        if (mFreeCount == 0) {
+            mExhausted++;
+            return new byte[mBufferSize];
+        }
+        byte[] buffer = mFree[--mFreeCount];
+        mFree[mFreeCount] = null;
+        return buffer;
+    }
+
+    /**
+     * Lease a buffer and copy a frame into it.
+     */
+    public byte[] copyOf(byte[] frame, int length) {
+        byte[] buffer = lease();
+        System.arraycopy(frame, 0, buffer, 0, length);
+        return buffer;
+    }
+
+    /**
+     * Give a leased buffer back. The caller must not touch it afterwards.
+     * @throws IllegalStateException if the buffer is already back in the
+     *         pool; kept, it would be leased twice
+     */
+    public synchronized void release(byte[] buffer) {
+        if (buffer == null) return;
+        for (int i = 0; i < mFreeCount; i++) {
+            if (mFree[i] == buffer) throw new IllegalStateException("buffer released twice");
+        }
+        if (mOutstanding > 0) mOutstanding--;
+        if (buffer.length == mBufferSize && mFreeCount < mFree.length) {
+            mFree[mFreeCount++] = buffer;
+        }
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    public synchronized int getFreeCount() {
+        return mFreeCount;
+    }
+
+    public synchronized long getLeaseCount() {
+        return mLeases;
+    }
+
+    /** Number of buffers leased and not yet released. */
+    public synchronized int getOutstanding() {
+        return mOutstanding;
+    }
+
+    /** Number of leases that found the pool empty. */
+    public synchronized long getExhaustedCount() {
+        return mExhausted;
+    }
+
+    /** Highest number of buffers out at the same time. */
+    public synchronized int getMaxOutstanding() {
+        return mMaxOutstanding;
+    }
+}
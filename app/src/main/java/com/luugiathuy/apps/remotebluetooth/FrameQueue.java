@@ -0,0 +1,165 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer queue of frames.
+ *
+ * Exactly one thread may call {@link #put(byte[], int)} (the reader) and
+ * exactly one thread may call the consumer methods (the decoder). Slots
+ * are handed over through two counters, so neither side ever takes a lock;
+ * a side only parks when the queue is full or empty.
+ */
+public class FrameQueue {
+
+    private final byte[][] mFrames;
+    private final int[] mLengths;
+    private final int mMask;
+
+    // Next slot to read, only advanced by the consumer
+    private final AtomicLong mHead = new AtomicLong();
+    // Next slot to write, only advanced by the producer
+    private final AtomicLong mTail = new AtomicLong();
+
+    private volatile Thread mConsumer;
+    private volatile Thread mProducer;
+    private volatile boolean mClosed;
+
+    // Statistics
+    private volatile long mFullCount;
+    private volatile int mMaxDepth;
+
+    /**
+     * @param capacity  Number of slots, rounded up to a power of two
+     */
+    public FrameQueue(int capacity) {
+        int size = 1;
+        while (size < capacity) size <<= 1;
+        mFrames = new byte[size][];
+        mLengths = new int[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Producer side. Blocks while the queue is full, so a slow consumer
+     * pushes back on the reader instead of losing frames.
+     * @return false if the queue was closed and the frame was not queued
+     */
+    public boolean put(byte[] frame, int length) {
+        long tail = mTail.get();
+        if (tail - mHead.get() > mMask) {
+            mFullCount++;
+            mProducer = Thread.currentThread();
+            while (tail - mHead.get() > mMask) {
+                if (mClosed) {
+                    mProducer = null;
+                    return false;
+                }
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            mProducer = null;
+        }
+        if (mClosed) return false;
+        int slot = (int) tail & mMask;
+        mFrames[slot] = frame;
+        mLengths[slot] = length;
+        mTail.set(tail + 1);
+
+        int depth = (int) (tail + 1 - mHead.get());
+        if (depth > mMaxDepth) mMaxDepth = depth;
+
+        Thread consumer = mConsumer;
+        if (consumer != null) LockSupport.unpark(consumer);
+        return true;
+    }
+
+    /**
+     * Consumer side. Wait until a frame is available.
+     * @param timeoutNanos  Longest wait, or a negative value to wait until
+     *                      a frame arrives or the queue is closed
+     * @return true if {@link #peek()} will return a frame
+     */
+    public boolean await(long timeoutNanos) {
+        if (!isEmpty()) return true;
+        long deadline = System.nanoTime() + timeoutNanos;
+        mConsumer = Thread.currentThread();
+        try {
+            while (isEmpty() && !mClosed) {
+                if (timeoutNanos < 0) {
+                    LockSupport.park(this);
+                } else {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) break;
+                    LockSupport.parkNanos(this, left);
+                }
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            mConsumer = null;
+        }
+        return !isEmpty();
+    }
+
+    /** Consumer side. The oldest frame, or null if the queue is empty. */
+    public byte[] peek() {
+        long head = mHead.get();
+        if (head == mTail.get()) return null;
+        return mFrames[(int) head & mMask];
+    }
+
+    /** Consumer side. Length of the frame returned by {@link #peek()}. */
+    public int peekLength() {
+        return mLengths[(int) mHead.get() & mMask];
+    }
+
+    /** Consumer side. Drop the frame returned by {@link #peek()}. */
+    public void remove() {
+        long head = mHead.get();
+        if (head == mTail.get()) return;
+        mFrames[(int) head & mMask] = null;
+        mHead.set(head + 1);
+
+        Thread producer = mProducer;
+        if (producer != null) LockSupport.unpark(producer);
+    }
+
+    public boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /** Release both sides; further puts are refused. */
+    public void close() {
+        mClosed = true;
+        Thread t = mConsumer;
+        if (t != null) LockSupport.unpark(t);
+        t = mProducer;
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /** Number of puts that found the queue full and had to wait. */
+    public long getFullCount() {
+        return mFullCount;
+    }
+
+    /** Highest number of frames queued at once. */
+    public int getMaxDepth() {
+        return mMaxDepth;
+    }
+}
@@ -0,0 +1,159 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+/**
+ * A fixed size ring of the last frames seen and sent on a connection, for
+ * post-mortem debugging instead of logging every frame.
+ *
+ * Recording only copies bytes into arrays allocated up front; nothing is
+ * formatted until {@link #dump(StringBuilder)} is called. The level can be
+ * changed at any time:
+ * <ul>
+ * <li>LEVEL_OFF: record() returns at once</li>
+ * <li>LEVEL_EVENTS: time, event, length and the 4 header bytes (which
+ * hold the sequence number of data frames and ACKs)</li>
+ * <li>LEVEL_FRAMES: time, event, length and the whole frame</li>
+ * </ul>
+ * Once the ring is full the oldest records are overwritten.
+ */
+public class FrameTrace {
+
+    public static final int LEVEL_OFF = 0;
+    public static final int LEVEL_EVENTS = 1;
+    public static final int LEVEL_FRAMES = 2;
+
+    // What a record is about
+    public static final int EVENT_RX = 0;         // valid frame received
+    public static final int EVENT_RX_CORRUPT = 1; // frame with a bad CRC received
+    public static final int EVENT_TX_CONFIG = 2;  // config reply sent
+    public static final int EVENT_TX_ACK = 3;     // ACK sent
+    public static final int EVENT_TX_NAK = 4;     // NAK sent
+    private static final String[] EVENT_NAMES = {"rx", "rx-bad", "tx-cfg", "tx-ack", "tx-nak"};
+
+    public static final int DEFAULT_CAPACITY = 256;
+    // Bytes kept per record at LEVEL_EVENTS: header, type, length, sequence
+    private static final int HEADER_BYTES = 4;
+
+    private final int mCapacity;
+    private final int mRecordBytes;
+    private volatile int mLevel;
+
+    // The ring, guarded by this
+    private final long[] mTimes;
+    private final byte[] mEvents;
+    private final short[] mLengths;
+    private final short[] mSaved;
+    private final byte[] mData;
+    private int mNext;
+    private long mCount;
+
+    public FrameTrace() {
+        this(DEFAULT_CAPACITY, FrameDecoder.DEFAULT_MAX_FRAME, LEVEL_EVENTS);
+    }
+
+    /**
+     * @param capacity     Records kept
+     * @param recordBytes  Bytes of a frame kept at LEVEL_FRAMES, longer
+     *                     frames are cut
+     * @param level        One of the LEVEL_ constants
+     */
+    public FrameTrace(int capacity, int recordBytes, int level) {
+        if (capacity < 1 || recordBytes < HEADER_BYTES) {
+            throw new IllegalArgumentException("bad trace size " + capacity + "/" + recordBytes);
+        }
+        mCapacity = capacity;
+        mRecordBytes = recordBytes;
+        mTimes = new long[capacity];
+        mEvents = new byte[capacity];
+        mLengths = new short[capacity];
+        mSaved = new short[capacity];
+        mData = new byte[capacity * recordBytes];
+        setLevel(level);
+    }
+
+    public void setLevel(int level) {
+        if (level < LEVEL_OFF || level > LEVEL_FRAMES) {
+            throw new IllegalArgumentException("bad trace level " + level);
+        }
+        mLevel = level;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    public boolean isEnabled() {
+        return mLevel != LEVEL_OFF;
+    }
+
+    /**
+     * Record a frame. The bytes are copied, the caller keeps the array.
+     * @param event  One of the EVENT_ constants
+     */
+    public void record(int event, byte[] frame, int length) {
+        int level = mLevel;
+        if (level == LEVEL_OFF) return;
+        long now = System.nanoTime();
+        int saved = Math.min(length, level == LEVEL_FRAMES ? mRecordBytes : HEADER_BYTES);
+        synchronized (this) {
+            int slot = mNext;
+            mTimes[slot] = now;
+            mEvents[slot] = (byte) event;
+            mLengths[slot] = (short) length;
+            mSaved[slot] = (short) saved;
+            System.arraycopy(frame, 0, mData, slot * mRecordBytes, saved);
+            mNext = slot + 1 == mCapacity ? 0 : slot + 1;
+            mCount++;
+        }
+    }
+
+    /**
+     * Return the number of records made since the trace was created or
+     * cleared, including overwritten ones.
+     */
+    public synchronized long getRecordCount() {
+        return mCount;
+    }
+
+    public synchronized void clear() {
+        mNext = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Append the records in the ring to out, oldest first, one line each:
+     * time in ms relative to the newest record, event, frame length and
+     * the saved bytes in hex.
+     * @return The number of records written
+     */
+    public synchronized int dump(StringBuilder out) {
+        int n = (int) Math.min(mCount, mCapacity);
+        if (n == 0) return 0;
+        int first = mNext - n;
+        if (first < 0) first += mCapacity;
+        long newest = mTimes[mNext == 0 ? mCapacity - 1 : mNext - 1];
+        for (int i = 0; i < n; i++) {
+            int slot = (first + i) % mCapacity;
+            long micros = (newest - mTimes[slot]) / 1000;
+            out.append('-').append(micros / 1000).append('.');
+            long frac = micros % 1000;
+            if (frac < 100) out.append('0');
+            if (frac < 10) out.append('0');
+            out.append(frac).append("ms ")
+                    .append(EVENT_NAMES[mEvents[slot]])
+                    .append(" len=").append(mLengths[slot]).append(' ');
+            Hex.append(out, mData, slot * mRecordBytes, mSaved[slot]);
+            if (mSaved[slot] < mLengths[slot]) out.append("..");
+            out.append('\n');
+        }
+        return n;
+    }
+
+    /**
+     * Return the dump as a String.
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        dump(sb);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,31 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+/**
+ * Lower case hex formatting of byte ranges, same output as
+ * String.format("%02x") per byte without the formatter.
+ */
+public final class Hex {
+
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    private Hex() {
+    }
+
+    /**
+     * Append two hex digits per byte to out.
+     * @return out
+     */
+    public static StringBuilder append(StringBuilder out, byte[] buffer, int offset, int length) {
+        out.ensureCapacity(out.length() + length * 2);
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            int b = buffer[i];
+            out.append(DIGITS[(b >> 4) & 0x0f]).append(DIGITS[b & 0x0f]);
+        }
+        return out;
+    }
+
+    public static String toString(byte[] buffer, int offset, int length) {
+        return append(new StringBuilder(length * 2), buffer, offset, length).toString();
+    }
+}
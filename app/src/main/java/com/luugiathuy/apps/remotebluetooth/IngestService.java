@@ -0,0 +1,267 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.annotation.SuppressLint;
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.util.Log;
+
+/**
+ * Hosts the BluetoothCommandService and the ReadingLog for as long as a
+ * connection is up, independent of any Activity. Activities bind to it,
+ * attach a Handler to get the same messages the engine used to send to
+ * RemoteBluetooth, and detach again when they are destroyed; the socket
+ * is not touched by either. While connecting or connected the service runs
+ * in the foreground with an ongoing notification, so downloads keep going
+ * with the app in the background.
+ *
+ * The service is started as well as bound, so it outlives the Activities.
+ * It stops itself once nothing is attached and there is no connection.
+ *
+ * The ReadingLog is opened and closed on a background thread, since both
+ * touch the disk. Clients get it in a MESSAGE_READING_LOG once it is open.
+ */
+public class IngestService extends Service {
+    // Debugging
+    private static final String TAG = "IngestService";
+    // Enabled with "adb shell setprop log.tag.IngestService DEBUG"
+    private static final boolean D = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final int NOTIFICATION_ID = 1;
+
+    /**
+     * What a bound Activity gets from onServiceConnected().
+     */
+    public class LocalBinder extends Binder {
+        public IngestService getService() {
+            return IngestService.this;
+        }
+    }
+
+    // Opens and closes reading logs in turn, so that a new instance of the
+    // service waits for the log of the last one to be closed
+    private static Handler sLogHandler;
+
+    private final IBinder mBinder = new LocalBinder();
+    private final CopyOnWriteArrayList<Handler> mClients = new CopyOnWriteArrayList<Handler>();
+    private BluetoothCommandService mCommandService;
+    private ReadingLog mReadingLog;
+    private boolean mForeground;
+    private boolean mDestroyed;
+
+    // Last state and device name, for clients that attach later
+    private int mState = BluetoothCommandService.STATE_NONE;
+    private String mDeviceName;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        if (D) Log.d(TAG, "onCreate()");
+        mCommandService = new BluetoothCommandService(this, mHandler);
+        // Recovering the log can take a while; readings decoded before it
+        // is open are only shown, not stored
+        final File dir = new File(getFilesDir(), "readings");
+        getLogHandler().post(new Runnable() {
+            public void run() {
+                try {
+                    ReadingLog log = new ReadingLog(dir);
+                    mHandler.obtainMessage(RemoteBluetooth.MESSAGE_READING_LOG, log).sendToTarget();
+                } catch (IOException e) {
+                    Log.e(TAG, "cannot open the reading log", e);
+                }
+            }
+        });
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Restarted by the system after being killed there is no link to
+        // pick up again; stay around for the Activity to reconnect
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (D) Log.d(TAG, "onDestroy()");
+        mDestroyed = true;
+        mCommandService.stop();
+        if (mReadingLog != null) {
+            closeLater(mReadingLog);
+            mReadingLog = null;
+        }
+        stopForeground(true);
+    }
+
+    private static synchronized Handler getLogHandler() {
+        if (sLogHandler == null) {
+            HandlerThread thread = new HandlerThread("ReadingLogIO");
+            thread.start();
+            sLogHandler = new Handler(thread.getLooper());
+        }
+        return sLogHandler;
+    }
+
+    /**
+     * Close a log on the background thread; close() waits for the writer
+     * to commit what is pending.
+     */
+    private static void closeLater(final ReadingLog log) {
+        getLogHandler().post(new Runnable() {
+            public void run() {
+                log.close();
+            }
+        });
+    }
+
+    /**
+     * Start sending the engine's messages to handler, beginning with the
+     * current MESSAGE_STATE_CHANGE, MESSAGE_READING_LOG if the log is open
+     * and MESSAGE_DEVICE_NAME if connected.
+     */
+    public void attach(Handler handler) {
+        if (!mClients.addIfAbsent(handler)) return;
+        if (mReadingLog != null) {
+            handler.obtainMessage(RemoteBluetooth.MESSAGE_READING_LOG, mReadingLog).sendToTarget();
+        }
+        if (mDeviceName != null) {
+            Message msg = handler.obtainMessage(RemoteBluetooth.MESSAGE_DEVICE_NAME);
+            Bundle bundle = new Bundle();
+            bundle.putString(RemoteBluetooth.DEVICE_NAME, mDeviceName);
+            msg.setData(bundle);
+            handler.sendMessage(msg);
+        }
+        handler.obtainMessage(RemoteBluetooth.MESSAGE_STATE_CHANGE, mState, -1).sendToTarget();
+    }
+
+    /**
+     * Stop sending messages to handler. The connection stays up; without
+     * one the service stops once the last handler is detached.
+     */
+    public void detach(Handler handler) {
+        mClients.remove(handler);
+        stopIfIdle();
+    }
+
+    public BluetoothCommandService getCommandService() {
+        return mCommandService;
+    }
+
+    /**
+     * Return the reading log, or null if it is not open yet or could not
+     * be opened.
+     */
+    public ReadingLog getReadingLog() {
+        return mReadingLog;
+    }
+
+    private void stopIfIdle() {
+        if (mClients.isEmpty() && !isActive(mState)) {
+            if (D) Log.d(TAG, "idle, stopping");
+            stopSelf();
+        }
+    }
+
+    private static boolean isActive(int state) {
+        return state == BluetoothCommandService.STATE_CONNECTING
+                || state == BluetoothCommandService.STATE_CONNECTED;
+    }
+
+    // Runs on the main thread: keeps the notification current and passes
+    // every message on to the attached Activities
+    @SuppressLint("HandlerLeak")
+    private final Handler mHandler = new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+            case RemoteBluetooth.MESSAGE_STATE_CHANGE:
+                mState = msg.arg1;
+                if (mState != BluetoothCommandService.STATE_CONNECTED) mDeviceName = null;
+                updateForeground();
+                break;
+            case RemoteBluetooth.MESSAGE_DEVICE_NAME:
+                mDeviceName = msg.getData().getString(RemoteBluetooth.DEVICE_NAME);
+                updateForeground();
+                break;
+            case RemoteBluetooth.MESSAGE_READING_LOG:
+                ReadingLog log = (ReadingLog) msg.obj;
+                if (mDestroyed) {
+                    // Opened after the service was destroyed
+                    closeLater(log);
+                    return;
+                }
+                mReadingLog = log;
+                mCommandService.setReadingLog(log);
+                break;
+            }
+            for (Handler client : mClients) {
+                client.sendMessage(Message.obtain(msg));
+            }
+            if (msg.what == RemoteBluetooth.MESSAGE_STATE_CHANGE) stopIfIdle();
+        }
+    };
+
+    private void updateForeground() {
+        if (!isActive(mState)) {
+            if (mForeground) {
+                stopForeground(true);
+                mForeground = false;
+            }
+            return;
+        }
+        CharSequence text = mState == BluetoothCommandService.STATE_CONNECTED
+                ? getText(R.string.title_connected_to) + (mDeviceName != null ? mDeviceName : "")
+                : getText(R.string.title_connecting);
+        // startForeground() again only replaces the notification
+        startForeground(NOTIFICATION_ID, buildNotification(this, text));
+        mForeground = true;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Notification buildNotification(Context context, CharSequence text) {
+        Intent intent = new Intent(context, RemoteBluetooth.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent content = PendingIntent.getActivity(context, 0, intent, 0);
+        CharSequence title = context.getText(R.string.app_name);
+        if (Build.VERSION.SDK_INT >= 11) {
+            return new Notification.Builder(context)
+                    .setSmallIcon(R.drawable.icon)
+                    .setContentTitle(title)
+                    .setContentText(text)
+                    .setContentIntent(content)
+                    .setOngoing(true)
+                    .getNotification();
+        }
+        // Before Notification.Builder; setLatestEventInfo() is gone from
+        // the SDK we compile against but there on these devices
+        Notification notification = new Notification(R.drawable.icon, text, System.currentTimeMillis());
+        notification.flags |= Notification.FLAG_ONGOING_EVENT;
+        try {
+            Method setLatestEventInfo = Notification.class.getMethod("setLatestEventInfo",
+                    Context.class, CharSequence.class, CharSequence.class, PendingIntent.class);
+            setLatestEventInfo.invoke(notification, context, title, text, content);
+        } catch (Exception e) {
+            Log.e(TAG, "cannot fill in the notification", e);
+        }
+        return notification;
+    }
+}
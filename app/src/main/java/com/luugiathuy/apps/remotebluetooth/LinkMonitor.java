@@ -0,0 +1,227 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+/**
+ * Tells a dead link from a quiet one without waiting for the OS, which
+ * notices a device gone out of range only after tens of seconds.
+ *
+ * The reader reports every read and every data frame. From the gaps
+ * between data frames the monitor learns the interval the device sends at;
+ * while it streams, the link is suspect after MISSED_INTERVALS intervals
+ * of silence, otherwise after the idle deadline. A suspect link is probed:
+ * the device is sent a command it answers without side effects, and if
+ * nothing at all is read within the probe timeout the link is declared
+ * dead. Without probes a suspect link is declared dead at once, and the
+ * idle deadline does not apply: a quiet device cannot be told from a gone
+ * one, so only a stream that stops is taken for a lost link.
+ *
+ * Reads only store a timestamp. One deadline on the watchdog is armed at a
+ * time, for when the silence would be too long; when it fires early
+ * because data came meanwhile it is armed again for the rest, so a healthy
+ * link costs one wakeup per deadline, not one per read. It is moved
+ * forward once when the device starts streaming.
+ */
+public class LinkMonitor {
+
+    public static final long DEFAULT_IDLE_MS = 30000;
+    public static final long DEFAULT_PROBE_TIMEOUT_MS = 3000;
+
+    // Silence of this many frame intervals makes a streaming link suspect
+    static final int MISSED_INTERVALS = 3;
+    // Gaps between data frames needed before the interval is trusted
+    static final int MIN_SAMPLES = 4;
+    // Never suspect a link sooner than this, whatever the interval
+    static final long MIN_DEADLINE_MS = 500;
+
+    /**
+     * What the monitor asks of the connection. Both are called on a
+     * watchdog thread.
+     */
+    public interface Callback {
+        /** Write a command the device answers and that has no side effects. */
+        void sendProbe();
+
+        /** Nothing was read for silentMs; close the link. */
+        void onLinkDead(long silentMs);
+    }
+
+    private final Callback mCallback;
+    private final Watchdog mWatchdog;
+    private final long mIdleNanos;
+    private final long mProbeTimeoutNanos;
+    private final boolean mProbe;
+
+    private volatile long mLastRead;
+    private volatile boolean mStopped;
+    private volatile long mProbes;
+    // Guarded by this
+    private long mProbeSentAt;
+    private Watchdog.Deadline mDeadline;
+
+    // Frame interval, mean and mean deviation as in TCP's RTT estimate;
+    // written by the reader only, reset when the checker asks for it
+    private long mLastFrame;
+    private int mSamples;
+    private long mMeanNanos;
+    private long mDevNanos;
+    private volatile long mExpectedNanos;   // 0 while unknown
+    private volatile boolean mResetIntervals;
+
+    private final Runnable mCheck = new Runnable() {
+        public void run() {
+            check(System.nanoTime());
+        }
+    };
+
+    /**
+     * @param idleMs          Longest silence while the device is not
+     *                        streaming; only with probes
+     * @param probeTimeoutMs  Wait for the answer to a probe
+     * @param probe           Probe a suspect link instead of declaring it
+     *                        dead at the idle deadline
+     */
+    public LinkMonitor(Callback callback, Watchdog watchdog, long idleMs, long probeTimeoutMs,
+            boolean probe) {
+        mCallback = callback;
+        mWatchdog = watchdog;
+        mIdleNanos = idleMs * 1000000L;
+        mProbeTimeoutNanos = probeTimeoutMs * 1000000L;
+        mProbe = probe;
+    }
+
+    /**
+     * Start watching, counting the silence from now.
+     */
+    public synchronized void start(long now) {
+        mLastRead = now;
+        long deadline = getDeadlineNanos();
+        if (deadline > 0) arm(deadline);
+    }
+
+    public synchronized void stop() {
+        mStopped = true;
+        if (mDeadline != null) mDeadline.cancel();
+    }
+
+    /**
+     * Called by the reader whenever read() returned bytes.
+     */
+    public void onRead(long now) {
+        mLastRead = now;
+    }
+
+    /**
+     * Called by the reader for every data frame, with the time of the read
+     * it came in.
+     */
+    public void onFrame(long now) {
+        if (mResetIntervals) {
+            mResetIntervals = false;
+            mLastFrame = 0;
+            mSamples = 0;
+        }
+        if (mLastFrame != 0) {
+            long gap = now - mLastFrame;
+            if (mSamples == 0) {
+                mMeanNanos = gap;
+                mDevNanos = gap / 2;
+            } else {
+                long err = gap - mMeanNanos;
+                mMeanNanos += err / 8;
+                mDevNanos += (Math.abs(err) - mDevNanos) / 4;
+            }
+            if (++mSamples >= MIN_SAMPLES) {
+                boolean started = mExpectedNanos == 0;
+                mExpectedNanos = mMeanNanos + 4 * mDevNanos;
+                // The deadline armed for a quiet link is far too late now
+                if (started) rearm(now);
+            }
+        }
+        mLastFrame = now;
+    }
+
+    /**
+     * Return the learned interval between data frames in ns (mean plus
+     * four deviations), or 0 if the device is not streaming.
+     */
+    public long getExpectedIntervalNanos() {
+        return mExpectedNanos;
+    }
+
+    /**
+     * Return the silence after which the link is suspect, in ns, or 0 if
+     * silence alone does not make it suspect.
+     */
+    public long getDeadlineNanos() {
+        long expected = mExpectedNanos;
+        if (expected == 0) return mProbe ? mIdleNanos : 0;
+        return Math.min(mIdleNanos, Math.max(MIN_DEADLINE_MS * 1000000L, MISSED_INTERVALS * expected));
+    }
+
+    public long getProbeCount() {
+        return mProbes;
+    }
+
+    private synchronized void rearm(long now) {
+        if (mProbeSentAt != 0 && mLastRead - mProbeSentAt < 0) return;
+        long deadline = getDeadlineNanos();
+        if (deadline > 0) arm(Math.max(0, deadline - (now - mLastRead)));
+    }
+
+    private void check(long now) {
+        long dead;
+        synchronized (this) {
+            dead = suspect(now);
+        }
+        if (dead > 0) {
+            mCallback.onLinkDead(dead / 1000000L);
+        } else if (dead == 0) {
+            mCallback.sendProbe();
+        }
+    }
+
+    /**
+     * Decide what the silence up to now means, and arm the next deadline.
+     * @return The silence in ns if the link is dead, 0 to send a probe,
+     *         -1 if all is well
+     */
+    private long suspect(long now) {
+        if (mStopped) return -1;
+        long lastRead = mLastRead;
+        if (mProbeSentAt != 0 && lastRead - mProbeSentAt < 0) {
+            // Waiting for the answer to a probe
+            long waited = now - mProbeSentAt;
+            if (waited < mProbeTimeoutNanos) {
+                arm(mProbeTimeoutNanos - waited);
+                return -1;
+            }
+            mStopped = true;
+            return Math.max(1, now - lastRead);
+        }
+        long silent = now - lastRead;
+        long deadline = getDeadlineNanos();
+        if (deadline == 0) return -1;
+        if (silent < deadline) {
+            arm(deadline - silent);
+            return -1;
+        }
+        if (!mProbe) {
+            mStopped = true;
+            return Math.max(1, silent);
+        }
+        // Suspect: the stream ended or the device is gone. Either way the
+        // interval learned so far no longer says when to expect data
+        mExpectedNanos = 0;
+        mResetIntervals = true;
+        mProbeSentAt = now;
+        mProbes++;
+        arm(mProbeTimeoutNanos);
+        return 0;
+    }
+
+    // Replace the armed deadline
+    private void arm(long nanos) {
+        if (mStopped) return;
+        if (mDeadline != null) mDeadline.cancel();
+        mDeadline = mWatchdog.schedule(nanos / 1000000L + 1, mCheck);
+    }
+}
@@ -0,0 +1,273 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A registry of named counters, gauges and latency histograms. Recording
+ * never takes a lock, so it is safe on the reader and writer threads;
+ * {@link #snapshot()} copies everything for the UI or a text export.
+ *
+ * Metrics are created on first use of a name and live as long as the
+ * registry; look them up once and keep the reference.
+ */
+public class Metrics {
+
+    /**
+     * A monotonically increasing count.
+     */
+    public static class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long n) {
+            mValue.addAndGet(n);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    /**
+     * A value read when a snapshot is taken, such as a queue depth.
+     */
+    public interface Gauge {
+        long get();
+    }
+
+    /**
+     * A histogram of non-negative values with bounded relative error, in
+     * the style of HdrHistogram: every power of two range is split into
+     * SUB_BUCKETS linear buckets, so a recorded value is reported within
+     * 1/SUB_BUCKETS (about 6%) of what it was.
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        // Values from 2^MAX_BITS up land in the last bucket (ns: ~18 min)
+        private static final int MAX_BITS = 40;
+        private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+        private static final int BUCKETS = bucketOf(MAX_VALUE) + 1;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        static int bucketOf(long value) {
+            if (value < 2 * SUB_BUCKETS) return (int) value;
+            int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS - 1;
+            return SUB_BUCKETS * shift + (int) (value >>> shift);
+        }
+
+        // Smallest value that falls in the bucket
+        static long lowestOf(int bucket) {
+            if (bucket < 2 * SUB_BUCKETS) return bucket;
+            int shift = bucket / SUB_BUCKETS - 1;
+            return (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        }
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            mCounts.incrementAndGet(bucketOf(Math.min(value, MAX_VALUE)));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while (value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        public HistogramSnapshot snapshot() {
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = mCounts.get(i);
+                count += counts[i];
+            }
+            return new HistogramSnapshot(counts, count, mSum.get(), mMax.get());
+        }
+    }
+
+    /**
+     * The state of a Histogram at one point in time.
+     */
+    public static class HistogramSnapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        HistogramSnapshot(long[] counts, long count, long sum, long max) {
+            mCounts = counts;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        /** Mean of the recorded values, or 0 if there were none. */
+        public long getMean() {
+            return mCount == 0 ? 0 : mSum / mCount;
+        }
+
+        /**
+         * Return the value below which the given fraction (0..1) of the
+         * recorded values fall, to the histogram's precision.
+         */
+        public long getPercentile(double fraction) {
+            if (mCount == 0) return 0;
+            long rank = (long) Math.ceil(fraction * mCount);
+            if (rank < 1) rank = 1;
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(Histogram.lowestOf(i + 1) - 1, mMax);
+                }
+            }
+            return mMax;
+        }
+    }
+
+    /**
+     * Every metric of a registry at one point in time.
+     */
+    public static class Snapshot {
+        private final long mTimeNanos;
+        private final TreeMap<String, Long> mValues;
+        private final TreeMap<String, HistogramSnapshot> mHistograms;
+
+        Snapshot(long timeNanos, TreeMap<String, Long> values,
+                TreeMap<String, HistogramSnapshot> histograms) {
+            mTimeNanos = timeNanos;
+            mValues = values;
+            mHistograms = histograms;
+        }
+
+        /** System.nanoTime() when the snapshot was taken */
+        public long getTimeNanos() {
+            return mTimeNanos;
+        }
+
+        /**
+         * Return the value of a counter or gauge, 0 if there is none.
+         */
+        public long get(String name) {
+            Long value = mValues.get(name);
+            return value == null ? 0 : value;
+        }
+
+        /**
+         * Return a histogram, or null if there is none.
+         */
+        public HistogramSnapshot getHistogram(String name) {
+            return mHistograms.get(name);
+        }
+
+        /**
+         * Return how fast a counter grew per second since an earlier snapshot.
+         */
+        public double rate(String name, Snapshot earlier) {
+            long nanos = mTimeNanos - earlier.mTimeNanos;
+            if (nanos <= 0) return 0;
+            return (get(name) - earlier.get(name)) * 1e9 / nanos;
+        }
+
+        /**
+         * Append one line per metric, sorted by name: "name value" for
+         * counters and gauges, "name count= mean= p50= p99= max=" for
+         * histograms.
+         */
+        public void writeTo(StringBuilder out) {
+            for (Map.Entry<String, Long> e : mValues.entrySet()) {
+                out.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+            }
+            for (Map.Entry<String, HistogramSnapshot> e : mHistograms.entrySet()) {
+                HistogramSnapshot h = e.getValue();
+                out.append(e.getKey())
+                        .append(" count=").append(h.getCount())
+                        .append(" mean=").append(h.getMean())
+                        .append(" p50=").append(h.getPercentile(0.5))
+                        .append(" p90=").append(h.getPercentile(0.9))
+                        .append(" p99=").append(h.getPercentile(0.99))
+                        .append(" max=").append(h.getMax())
+                        .append('\n');
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            writeTo(sb);
+            return sb.toString();
+        }
+    }
+
+    private final ConcurrentMap<String, Counter> mCounters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Gauge> mGauges = new ConcurrentHashMap<String, Gauge>();
+    private final ConcurrentMap<String, Histogram> mHistograms = new ConcurrentHashMap<String, Histogram>();
+
+    /**
+     * Return the counter with the given name, creating it if needed.
+     */
+    public Counter counter(String name) {
+        Counter c = mCounters.get(name);
+        if (c == null) {
+            Counter created = new Counter();
+            c = mCounters.putIfAbsent(name, created);
+            if (c == null) c = created;
+        }
+        return c;
+    }
+
+    /**
+     * Return the histogram with the given name, creating it if needed.
+     */
+    public Histogram histogram(String name) {
+        Histogram h = mHistograms.get(name);
+        if (h == null) {
+            Histogram created = new Histogram();
+            h = mHistograms.putIfAbsent(name, created);
+            if (h == null) h = created;
+        }
+        return h;
+    }
+
+    /**
+     * Register a gauge, replacing any gauge of the same name.
+     */
+    public void gauge(String name, Gauge gauge) {
+        mGauges.put(name, gauge);
+    }
+
+    public Snapshot snapshot() {
+        TreeMap<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, Counter> e : mCounters.entrySet()) {
+            values.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> e : mGauges.entrySet()) {
+            values.put(e.getKey(), e.getValue().get());
+        }
+        TreeMap<String, HistogramSnapshot> histograms = new TreeMap<String, HistogramSnapshot>();
+        for (Map.Entry<String, Histogram> e : mHistograms.entrySet()) {
+            histograms.put(e.getKey(), e.getValue().snapshot());
+        }
+        return new Snapshot(System.nanoTime(), values, histograms);
+    }
+}
@@ -0,0 +1,257 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.io.IOException;
+import java.util.Calendar;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Shows readings in a ListView: first those of a {@link ReadingLog} query,
+ * then those that arrive while the list is shown.
+ *
+ * The query is not read up front. Rows are pulled from its cursor a page at
+ * a time when the list is scrolled close to the last row loaded, so opening
+ * a long history only costs one page. Pages are read on a background
+ * thread and added on the UI thread, so scrolling never waits for the disk.
+ *
+ * Readings that arrive while history is still being read are held back and
+ * shown after it. A reading is left out only if its log position shows the
+ * query already covers it; the rest, including readings not stored yet
+ * when the query was made, stay visible.
+ *
+ * Rows are held in {@link ReadingColumns}, so a row costs 28 bytes and no
+ * objects; text is only made in getView(), for the rows on screen, into a
+ * reused buffer.
+ */
+public class ReadingAdapter extends BaseAdapter implements ReadingColumns.Listener {
+    private static final String TAG = "ReadingAdapter";
+
+    public static final int PAGE_SIZE = 200;
+    // Load the next page once a row this close to the end is shown
+    private static final int PREFETCH = 50;
+
+    // Reads the pages of every adapter's cursor, one at a time
+    private static Handler sLoader;
+
+    private final Handler mHandler = new Handler();
+    private final LayoutInflater mInflater;
+    private final Calendar mCalendar = Calendar.getInstance();
+    private final StringBuilder mText = new StringBuilder(32);
+
+    // Rows shown, history first
+    private final ReadingColumns mRows = new ReadingColumns();
+    // Rows received while history is still left in the cursor
+    private final ReadingColumns mLive = new ReadingColumns();
+    // Only handed to the loader thread from here on
+    private ReadingLog.Cursor mCursor;
+    // Log position the cursor ends at; live readings before it are in it
+    private long mEnd;
+    private boolean mLoading;
+    // Changed with the cursor, so pages of an old one are ignored
+    private int mGeneration;
+
+    public ReadingAdapter(Context context) {
+        mInflater = LayoutInflater.from(context);
+        mRows.addListener(this);
+    }
+
+    /**
+     * Show the readings of a query, replacing what is shown. The adapter
+     * closes the cursor once it is read to the end, or in close().
+     */
+    public void setCursor(ReadingLog.Cursor cursor) {
+        closeCursor();
+        long end = cursor.getEnd();
+        // What is shown and not covered by the query goes after it
+        ReadingColumns live = new ReadingColumns();
+        live.addAllFrom(mRows, end);
+        live.addAllFrom(mLive, end);
+        mRows.clear();
+        mLive.clear();
+        mLive.addAll(live);
+        mCursor = cursor;
+        mEnd = end;
+        loadPage();
+    }
+
+    /**
+     * Add a reading after everything else.
+     */
+    public void add(long device, long timeMs, double value) {
+        if (mCursor != null) {
+            mLive.add(device, timeMs, value);
+        } else {
+            mRows.add(device, timeMs, value);
+        }
+    }
+
+    /**
+     * Add readings after everything else, telling the list once. Readings
+     * the query set with setCursor() covers are left out.
+     */
+    public void addAll(ReadingColumns readings) {
+        if (mCursor != null) {
+            mLive.addAllFrom(readings, mEnd);
+        } else {
+            mRows.addAllFrom(readings, mEnd);
+        }
+    }
+
+    /**
+     * The rows shown, to read or to listen to.
+     */
+    public ReadingColumns getRows() {
+        return mRows;
+    }
+
+    public void close() {
+        closeCursor();
+    }
+
+    @Override
+    public int getCount() {
+        return mRows.size();
+    }
+
+    @Override
+    public ReadingLog.Reading getItem(int position) {
+        return new ReadingLog.Reading(mRows.getDevice(position), mRows.getTime(position),
+                mRows.getValue(position));
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) convertView;
+        if (view == null) {
+            view = (TextView) mInflater.inflate(android.R.layout.simple_list_item_1, parent, false);
+        }
+        mText.setLength(0);
+        appendValue(mText, mRows.getValue(position));
+        mText.append(' ');
+        appendTime(mText, mRows.getTime(position));
+        view.setText(mText);
+
+        // The page is added from a later message, not while the list lays out
+        if (position >= mRows.size() - PREFETCH) loadPage();
+        return view;
+    }
+
+    // ListView has no partial updates; it rebinds only the rows on screen
+    public void onRangeInserted(int start, int count) {
+        notifyDataSetChanged();
+    }
+
+    public void onCleared() {
+        notifyDataSetChanged();
+    }
+
+    private void loadPage() {
+        if (mCursor == null || mLoading) return;
+        mLoading = true;
+        final ReadingLog.Cursor cursor = mCursor;
+        final int generation = mGeneration;
+        getLoader().post(new Runnable() {
+            public void run() {
+                final ReadingColumns page = new ReadingColumns(PAGE_SIZE);
+                boolean done;
+                try {
+                    done = page.addFrom(cursor, PAGE_SIZE) < PAGE_SIZE;
+                } catch (IOException e) {
+                    Log.e(TAG, "cannot read stored readings", e);
+                    done = true;
+                }
+                if (done) closeQuietly(cursor);
+                final boolean last = done;
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        onPageLoaded(generation, page, last);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onPageLoaded(int generation, ReadingColumns page, boolean last) {
+        if (generation != mGeneration) return;
+        mLoading = false;
+        mRows.addAll(page);
+        if (last) {
+            // History done, what arrived meanwhile goes after it; the
+            // loader closed the cursor
+            mCursor = null;
+            mRows.addAll(mLive);
+            mLive.clear();
+        }
+    }
+
+    private void closeCursor() {
+        mGeneration++;
+        mLoading = false;
+        if (mCursor == null) return;
+        final ReadingLog.Cursor cursor = mCursor;
+        mCursor = null;
+        // After any page still being read from it
+        getLoader().post(new Runnable() {
+            public void run() {
+                closeQuietly(cursor);
+            }
+        });
+    }
+
+    private static void closeQuietly(ReadingLog.Cursor cursor) {
+        try {
+            cursor.close();
+        } catch (IOException e) {
+            Log.e(TAG, "cannot close the query", e);
+        }
+    }
+
+    private static synchronized Handler getLoader() {
+        if (sLoader == null) {
+            HandlerThread thread = new HandlerThread("ReadingLoader");
+            thread.start();
+            sLoader = new Handler(thread.getLooper());
+        }
+        return sLoader;
+    }
+
+    // One decimal, as the thermometer measures
+    static void appendValue(StringBuilder sb, float value) {
+        int tenths = Math.round(value * 10);
+        if (tenths < 0) {
+            sb.append('-');
+            tenths = -tenths;
+        }
+        sb.append(tenths / 10).append('.').append(tenths % 10);
+    }
+
+    // yyyy-MM-dd HH:mm:ss in local time
+    private void appendTime(StringBuilder sb, long timeMs) {
+        Calendar c = mCalendar;
+        c.setTimeInMillis(timeMs);
+        sb.append(c.get(Calendar.YEAR)).append('-');
+        appendTwo(sb, c.get(Calendar.MONTH) + 1).append('-');
+        appendTwo(sb, c.get(Calendar.DAY_OF_MONTH)).append(' ');
+        appendTwo(sb, c.get(Calendar.HOUR_OF_DAY)).append(':');
+        appendTwo(sb, c.get(Calendar.MINUTE)).append(':');
+        appendTwo(sb, c.get(Calendar.SECOND));
+    }
+
+    private static StringBuilder appendTwo(StringBuilder sb, int n) {
+        if (n < 10) sb.append('0');
+        return sb.append(n);
+    }
+}
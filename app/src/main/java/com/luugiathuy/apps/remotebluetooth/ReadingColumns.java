@@ -0,0 +1,199 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A growing list of readings kept as parallel primitive columns (time,
+ * device, value, log position) instead of one object per reading. Appends
+ * go in place, doubling the columns when they are full, and listeners are
+ * told which range was added rather than that everything changed.
+ *
+ * The position is the reading's position in the {@link ReadingLog}, or -1
+ * if it was not stored.
+ *
+ * Not thread-safe; use it from one thread, normally the UI thread.
+ */
+public class ReadingColumns {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Told about changes of the list.
+     */
+    public interface Listener {
+        /** count readings were appended from position start on. */
+        void onRangeInserted(int start, int count);
+
+        /** The list was cleared. */
+        void onCleared();
+    }
+
+    private long[] mTimes;
+    private long[] mDevices;
+    private float[] mValues;
+    private long[] mPositions;
+    private int mSize;
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    public ReadingColumns() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ReadingColumns(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("bad capacity " + capacity);
+        mTimes = new long[capacity];
+        mDevices = new long[capacity];
+        mValues = new float[capacity];
+        mPositions = new long[capacity];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /** ms since the epoch */
+    public long getTime(int position) {
+        check(position);
+        return mTimes[position];
+    }
+
+    public long getDevice(int position) {
+        check(position);
+        return mDevices[position];
+    }
+
+    public float getValue(int position) {
+        check(position);
+        return mValues[position];
+    }
+
+    /** Position in the ReadingLog, -1 if not stored */
+    public long getLogPosition(int position) {
+        check(position);
+        return mPositions[position];
+    }
+
+    /**
+     * Append one reading that is not stored and tell the listeners.
+     */
+    public void add(long device, long timeMs, double value) {
+        add(device, timeMs, value, -1);
+    }
+
+    /**
+     * Append one reading and tell the listeners.
+     * @param logPosition  Its position in the ReadingLog, -1 if not stored
+     */
+    public void add(long device, long timeMs, double value, long logPosition) {
+        int start = mSize;
+        put(device, timeMs, value, logPosition);
+        notifyInserted(start, 1);
+    }
+
+    /**
+     * Append every reading of other and tell the listeners once.
+     */
+    public void addAll(ReadingColumns other) {
+        int n = other.mSize;
+        if (n == 0) return;
+        int start = mSize;
+        ensureCapacity(start + n);
+        System.arraycopy(other.mTimes, 0, mTimes, start, n);
+        System.arraycopy(other.mDevices, 0, mDevices, start, n);
+        System.arraycopy(other.mValues, 0, mValues, start, n);
+        System.arraycopy(other.mPositions, 0, mPositions, start, n);
+        mSize = start + n;
+        notifyInserted(start, n);
+    }
+
+    /**
+     * Append the readings of other that are not stored, or stored at
+     * fromPosition or later, and tell the listeners once.
+     * @return The number appended
+     */
+    public int addAllFrom(ReadingColumns other, long fromPosition) {
+        int start = mSize;
+        ensureCapacity(start + other.mSize);
+        for (int i = 0; i < other.mSize; i++) {
+            long logPosition = other.mPositions[i];
+            if (logPosition >= 0 && logPosition < fromPosition) continue;
+            put(other.mDevices[i], other.mTimes[i], other.mValues[i], logPosition);
+        }
+        int n = mSize - start;
+        if (n > 0) notifyInserted(start, n);
+        return n;
+    }
+
+    /**
+     * Append readings from a cursor, at most max of them, and tell the
+     * listeners once.
+     * @return The number appended; fewer than max once the cursor is done
+     */
+    public int addFrom(ReadingLog.Cursor cursor, int max) throws IOException {
+        int start = mSize;
+        int n = 0;
+        try {
+            while (n < max && cursor.moveToNext()) {
+                put(cursor.getDevice(), cursor.getTime(), cursor.getValue(), cursor.getPosition());
+                n++;
+            }
+        } finally {
+            if (n > 0) notifyInserted(start, n);
+        }
+        return n;
+    }
+
+    /**
+     * Remove every reading. The columns keep their size.
+     */
+    public void clear() {
+        if (mSize == 0) return;
+        mSize = 0;
+        for (Listener l : mListeners) l.onCleared();
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void put(long device, long timeMs, double value, long logPosition) {
+        ensureCapacity(mSize + 1);
+        mTimes[mSize] = timeMs;
+        mDevices[mSize] = device;
+        mValues[mSize] = (float) value;
+        mPositions[mSize] = logPosition;
+        mSize++;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= mTimes.length) return;
+        int capacity = Math.max(needed, mTimes.length * 2);
+        long[] times = new long[capacity];
+        long[] devices = new long[capacity];
+        float[] values = new float[capacity];
+        long[] positions = new long[capacity];
+        System.arraycopy(mTimes, 0, times, 0, mSize);
+        System.arraycopy(mDevices, 0, devices, 0, mSize);
+        System.arraycopy(mValues, 0, values, 0, mSize);
+        System.arraycopy(mPositions, 0, positions, 0, mSize);
+        mTimes = times;
+        mDevices = devices;
+        mValues = values;
+        mPositions = positions;
+    }
+
+    private void notifyInserted(int start, int count) {
+        for (Listener l : mListeners) l.onRangeInserted(start, count);
+    }
+
+    private void check(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + mSize);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Finds the ear thermometer's packets in the bytes it sends and decodes
+ * them, with the same results as the SDK's DevicePackManager.arrangeMessage()
+ * but without its objects: readings go to a {@link Sink} as a time and a
+ * value in tenths of a degree.
+ *
+ * A packet starts with a command byte (high bit clear) of a known length
+ * and goes on with bytes that have the high bit set; the second byte
+ * usually holds the high bits of the ones after it. A byte with the high
+ * bit clear inside a packet ends it unfinished, and is dropped with it.
+ * Packets may span calls to feed().
+ *
+ * The count of readings is never reset, as in the SDK: a download is
+ * complete (STATUS_DATA_DONE) when the readings decoded so far reach the
+ * count the device announced. Times are seconds since 2000-01-01 00:00 in
+ * the given time zone.
+ *
+ * Not thread safe, and allocates nothing after construction.
+ *
+ * The benchmark module's checkDecoder task replays the traces in
+ * benchmark/traces and fails if any decodes differently from what the SDK
+ * was recorded decoding; run it after changing this class.
+ */
+public class ReadingDecoder {
+
+    // What feed() returns for the last packet it finished, the SDK's codes
+    public static final int STATUS_NONE = 0;
+    public static final int STATUS_DATA_DONE = 1;        // reading, the last one announced
+    public static final int STATUS_DATA = 2;             // reading, more to come
+    public static final int STATUS_SET_TIME_OK = 3;
+    public static final int STATUS_SET_TIME_FAILED = 4;
+    public static final int STATUS_DELETE_OK = 5;
+    public static final int STATUS_DELETE_FAILED = 6;
+    public static final int STATUS_NO_DATA = 7;          // the device has no readings
+    public static final int STATUS_OLD_DEVICE = 8;       // answer to confirm-equipment
+    public static final int STATUS_NEW_DEVICE = 9;       // the device has readings
+    public static final int STATUS_DEVICE_TIME = 10;
+    // Replies to packets 0x26 and 0x25, which the SDK logs as deletes too
+    public static final int STATUS_DELETE_26_OK = 11;
+    public static final int STATUS_DELETE_26_FAILED = 12;
+    public static final int STATUS_DELETE_25_OK = 13;
+    public static final int STATUS_DELETE_25_FAILED = 14;
+
+    // Packet command bytes
+    static final int PACKET_READING = 0x20;
+    static final int PACKET_DEVICE_TYPE = 0x21;
+    static final int PACKET_SET_TIME = 0x22;
+    static final int PACKET_DEVICE_TIME = 0x23;
+    static final int PACKET_DELETE = 0x24;
+    static final int PACKET_DELETE_25 = 0x25;
+    static final int PACKET_DELETE_26 = 0x26;
+    static final int PACKET_COUNT = 0x27;
+
+    // Value of a reading whose format is unknown, 50.0 degrees
+    static final int UNKNOWN_TENTHS = 500;
+    private static final int MAX_PACKET = 9;
+
+    /** What getDeviceTime() returns before the device reported its clock */
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    /**
+     * Receives the decoded readings.
+     */
+    public interface Sink {
+        /**
+         * @param timeMs  When it was taken, ms since the epoch
+         * @param tenths  The temperature in tenths of a degree
+         */
+        void onReading(long timeMs, int tenths);
+    }
+
+    private final Sink mSink;
+    // 2000-01-01 00:00 local time, in ms since the epoch
+    private final long mEpochMs;
+
+    private final byte[] mPacket = new byte[MAX_PACKET];
+    private boolean mInPacket;
+    private int mCount;
+    private int mLength;
+
+    private int mReadings;
+    private int mExpected;
+    private long mDeviceTime = NO_TIME;
+
+    public ReadingDecoder(Sink sink) {
+        this(sink, TimeZone.getDefault());
+    }
+
+    /**
+     * @param zone  Time zone of the device clock
+     */
+    public ReadingDecoder(Sink sink, TimeZone zone) {
+        mSink = sink;
+        Calendar epoch = Calendar.getInstance(zone);
+        epoch.clear();
+        epoch.set(2000, Calendar.JANUARY, 1, 0, 0, 0);
+        mEpochMs = epoch.getTimeInMillis();
+    }
+
+    /**
+     * Decode length bytes of buffer, continuing a packet left unfinished
+     * by the last call.
+     * @return The status of the last packet finished, STATUS_NONE if none
+     */
+    public int feed(byte[] buffer, int length) {
+        int status = STATUS_NONE;
+        for (int i = 0; i < length; i++) {
+            byte b = buffer[i];
+            if (mInPacket) {
+                if (b < 0) {
+                    mPacket[mCount++] = b;
+                    if (mCount >= mLength) {
+                        mInPacket = false;
+                        status = process();
+                    }
+                } else {
+                    mInPacket = false;
+                }
+            } else if (b >= 0 && packetLength(b) > 0) {
+                mInPacket = true;
+                mLength = packetLength(b);
+                mPacket[0] = b;
+                mCount = 1;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Return the number of readings the device announced, 0 if it did not.
+     */
+    public int getExpectedCount() {
+        return mExpected;
+    }
+
+    /**
+     * Return the number of readings decoded so far.
+     */
+    public int getReadingCount() {
+        return mReadings;
+    }
+
+    /**
+     * Return the device clock as last reported, in ms since the epoch, or
+     * NO_TIME if it was not. Times from before 1970 are negative.
+     */
+    public long getDeviceTime() {
+        return mDeviceTime;
+    }
+
+    /**
+     * Return the length of a packet starting with a command byte, 0 if it
+     * starts none.
+     */
+    static int packetLength(int command) {
+        switch (command) {
+        case PACKET_READING:
+            return 9;
+        case PACKET_DEVICE_TIME:
+            return 6;
+        case PACKET_DEVICE_TYPE:
+        case PACKET_SET_TIME:
+        case PACKET_DELETE:
+        case PACKET_DELETE_25:
+        case PACKET_DELETE_26:
+        case PACKET_COUNT:
+            return 3;
+        default:
+            return 0;
+        }
+    }
+
+    private int process() {
+        byte[] p = mPacket;
+        int result = p[2] & 0x7f;
+        switch (p[0]) {
+        case PACKET_READING:
+            mReadings++;
+            mSink.onReading(mEpochMs + seconds(p, 2, 4) * 1000L, tenths(p));
+            return mReadings == mExpected ? STATUS_DATA_DONE : STATUS_DATA;
+        case PACKET_DEVICE_TYPE:
+            return STATUS_OLD_DEVICE;
+        case PACKET_SET_TIME:
+            return reply(result, STATUS_SET_TIME_OK, STATUS_SET_TIME_FAILED);
+        case PACKET_DEVICE_TIME:
+            mDeviceTime = mEpochMs + seconds(p, 0, 2) * 1000L;
+            return STATUS_DEVICE_TIME;
+        case PACKET_DELETE:
+            return reply(result, STATUS_DELETE_OK, STATUS_DELETE_FAILED);
+        case PACKET_DELETE_25:
+            return reply(result, STATUS_DELETE_25_OK, STATUS_DELETE_25_FAILED);
+        case PACKET_DELETE_26:
+            return reply(result, STATUS_DELETE_26_OK, STATUS_DELETE_26_FAILED);
+        case PACKET_COUNT:
+            mExpected = (((p[1] & 1) << 7) | result) & 0xff;
+            return mExpected == 0 ? STATUS_NO_DATA : STATUS_NEW_DEVICE;
+        default:
+            return STATUS_NONE;
+        }
+    }
+
+    private static int reply(int result, int ok, int failed) {
+        return result == 0 ? ok : result == 1 ? failed : STATUS_NONE;
+    }
+
+    /**
+     * Return the four byte time at p[from..from + 3], whose high bits are
+     * bits firstBit.. of p[1], as a signed 32 bit count of seconds.
+     */
+    private static long seconds(byte[] p, int firstBit, int from) {
+        int high = (p[1] & 0x7f) >> firstBit;
+        int s = ((high & 1) << 7 | (p[from] & 0x7f))
+                | ((high >> 1 & 1) << 7 | (p[from + 1] & 0x7f)) << 8
+                | ((high >> 2 & 1) << 7 | (p[from + 2] & 0x7f)) << 16
+                | ((high >> 3 & 1) << 7 | (p[from + 3] & 0x7f)) << 24;
+        return s;
+    }
+
+    /**
+     * Return the temperature of a reading packet. The high nibble of p[2]
+     * tells the format; the SDK divides the raw value by 10 in integers.
+     */
+    private static int tenths(byte[] p) {
+        int a = p[1] & 1;
+        int b = (p[1] >> 1) & 1;
+        int low = (b << 7) | (p[3] & 0x7f);
+        switch ((p[2] >> 4) & 0x0f) {
+        case 0x8:
+        case 0x9:
+            return (((a << 8 | (p[2] & 0x7f)) << 8 | low) & 0xffff) / 10;
+        case 0xc:
+            return (((a << 8 | (p[2] & 0x0f)) << 8 | low) & 0xffff) / 10;
+        default:
+            return UNKNOWN_TENTHS;
+        }
+    }
+}
@@ -0,0 +1,807 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Append-only store of temperature readings that survives restarts.
+ *
+ * Readings are fixed size records of (device, time, value) written to
+ * memory-mapped segment files readings-NNNNNNNN.log in one directory.
+ * A segment holds a fixed number of records; once it is full the next one
+ * is started.
+ *
+ * append() only copies the reading into a pending buffer and never waits
+ * for the disk, so it is safe on the threads of a connection. A writer
+ * thread moves pending readings to the mapped segment and then forces it
+ * to disk once for the whole batch (group commit), at the latest one
+ * commit interval after the first of them was appended. After every
+ * commit the segment header records how many records are durable (the
+ * checkpoint).
+ *
+ * When the log is opened, every segment is taken as it is up to its
+ * checkpoint and scanned from there for records that were written but not
+ * yet checkpointed; each record carries a CRC32, so the scan stops at the
+ * first torn or empty one.
+ *
+ * Every segment keeps a sparse index in memory: for each block of
+ * INDEX_BLOCK records the lowest and highest time in it and a 64 bit
+ * filter of the devices it holds. Device clocks make times arrive out of
+ * order, so the index is a range per block rather than a sorted key;
+ * {@link #query(long, long, long)} only reads the blocks whose range and
+ * filter can match. The index and the latest reading of every device are
+ * rebuilt from the mapped segments when the log is opened.
+ *
+ * Every record has a position, its index in the log counted over all
+ * segments. append() returns it and a Cursor reports it, so a reading seen
+ * both live and in a query can be told apart from a new one. Positions
+ * stay in step with the segments unless a commit fails.
+ *
+ * Segment layout: a HEADER_SIZE byte header (magic, version, record size,
+ * capacity, checkpoint) followed by RECORD_SIZE byte records: time (ms
+ * since the epoch), device id, value (double), 4 reserved bytes and the
+ * CRC32 of the 28 bytes before it.
+ */
+public class ReadingLog {
+    private static final String TAG = "ReadingLog";
+
+    public static final int RECORD_SIZE = 32;
+    public static final int DEFAULT_SEGMENT_RECORDS = 32768;      // 1 MiB segments
+    public static final long DEFAULT_COMMIT_INTERVAL_MS = 200;
+    public static final int DEFAULT_PENDING_CAPACITY = 4096;
+    // Records per block of the sparse index, and per read of a query
+    public static final int INDEX_BLOCK = 128;
+    // Device id that matches every device in a query
+    public static final long ANY_DEVICE = -1;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int MAGIC = 0x52444c47;                   // "RDLG"
+    private static final int VERSION = 1;
+    private static final int HEADER_CHECKPOINT = 16;
+    private static final int CRC_OFFSET = 28;
+    private static final String PREFIX = "readings-";
+    private static final String SUFFIX = ".log";
+
+    /**
+     * Receives the records of a scan. Return false to stop the scan.
+     */
+    public interface Visitor {
+        boolean visit(long device, long timeMs, double value);
+    }
+
+    /**
+     * One stored reading.
+     */
+    public static class Reading {
+        private final long mDevice;
+        private final long mTime;
+        private final double mValue;
+
+        public Reading(long device, long timeMs, double value) {
+            mDevice = device;
+            mTime = timeMs;
+            mValue = value;
+        }
+
+        public long getDevice() {
+            return mDevice;
+        }
+
+        /** ms since the epoch */
+        public long getTime() {
+            return mTime;
+        }
+
+        public double getValue() {
+            return mValue;
+        }
+    }
+
+    // A segment file, how many records it holds and its index. All but
+    // index and file are guarded by mSegments.
+    private static class Segment {
+        final int index;
+        final File file;
+        int count;
+        long[] minTimes;
+        long[] maxTimes;
+        long[] devices;   // bit (deviceBit) set for each device in the block
+
+        Segment(int index, File file) {
+            this.index = index;
+            this.file = file;
+        }
+
+        void allocateIndex(int capacity) {
+            int blocks = (capacity + INDEX_BLOCK - 1) / INDEX_BLOCK;
+            minTimes = new long[blocks];
+            maxTimes = new long[blocks];
+            devices = new long[blocks];
+        }
+
+        // Add record number n, which must be the next one of its block
+        void addToIndex(int n, long device, long timeMs) {
+            int block = n / INDEX_BLOCK;
+            if (n % INDEX_BLOCK == 0) {
+                minTimes[block] = timeMs;
+                maxTimes[block] = timeMs;
+                devices[block] = 0;
+            } else {
+                if (timeMs < minTimes[block]) minTimes[block] = timeMs;
+                if (timeMs > maxTimes[block]) maxTimes[block] = timeMs;
+            }
+            devices[block] |= deviceBit(device);
+        }
+
+        boolean mayMatch(int block, long device, long fromMs, long toMs) {
+            return minTimes[block] <= toMs && maxTimes[block] >= fromMs
+                    && (device == ANY_DEVICE || (devices[block] & deviceBit(device)) != 0);
+        }
+    }
+
+    /**
+     * Readings matching a query, read from the segments a block at a time
+     * as the cursor moves. Covers what was written when the query was
+     * made. Close it when done.
+     */
+    public class Cursor {
+        private final long mDevice;
+        private final long mFrom;
+        private final long mTo;
+        private final Segment[] mSegs;
+        private final int[] mCounts;
+        private final long[] mBases;    // position of each segment's first record
+        private final long mEnd;
+        private final byte[] mBlock = new byte[INDEX_BLOCK * RECORD_SIZE];
+        private final ByteBuffer mBuffer = ByteBuffer.wrap(mBlock);
+        private int mSegment = -1;
+        private RandomAccessFile mFile;
+        private int mNextBlock;     // next block of the segment to look at
+        private int mInBlock;       // records read into mBlock
+        private int mPosition;      // next record in mBlock
+        private int mOffset = -RECORD_SIZE;  // current record in mBlock
+        private long mBlockFirst;   // position of mBlock[0]
+        private long mBlocksRead;
+
+        Cursor(long device, long fromMs, long toMs) {
+            mDevice = device;
+            mFrom = fromMs;
+            mTo = toMs;
+            synchronized (mSegments) {
+                mSegs = mSegments.toArray(new Segment[mSegments.size()]);
+                mCounts = new int[mSegs.length];
+                mBases = new long[mSegs.length];
+                long end = 0;
+                for (int i = 0; i < mSegs.length; i++) {
+                    mCounts[i] = mSegs[i].count;
+                    mBases[i] = end;
+                    end += mCounts[i];
+                }
+                mEnd = end;
+            }
+        }
+
+        /**
+         * Move to the next matching reading.
+         * @return false once there are no more
+         */
+        public boolean moveToNext() throws IOException {
+            while (true) {
+                while (mPosition < mInBlock) {
+                    int off = mPosition++ * RECORD_SIZE;
+                    long time = mBuffer.getLong(off);
+                    if (time < mFrom || time > mTo) continue;
+                    if (mDevice != ANY_DEVICE && mBuffer.getLong(off + 8) != mDevice) continue;
+                    mOffset = off;
+                    return true;
+                }
+                if (!readBlock()) return false;
+            }
+        }
+
+        public long getDevice() {
+            return mBuffer.getLong(mOffset + 8);
+        }
+
+        /** ms since the epoch */
+        public long getTime() {
+            return mBuffer.getLong(mOffset);
+        }
+
+        public double getValue() {
+            return mBuffer.getDouble(mOffset + 16);
+        }
+
+        /** Position of the current reading in the log. */
+        public long getPosition() {
+            return mBlockFirst + mOffset / RECORD_SIZE;
+        }
+
+        /**
+         * Position after the last record the cursor covers. Readings
+         * appended at this position or later are not in it.
+         */
+        public long getEnd() {
+            return mEnd;
+        }
+
+        /** Blocks read from disk so far; the rest were skipped by the index. */
+        public long getBlocksRead() {
+            return mBlocksRead;
+        }
+
+        public void close() throws IOException {
+            mInBlock = 0;
+            mPosition = 0;
+            mSegment = mSegs.length;
+            closeFile();
+        }
+
+        // Read the next block that may match into mBlock
+        private boolean readBlock() throws IOException {
+            while (mSegment < mSegs.length) {
+                if (mSegment >= 0) {
+                    Segment seg = mSegs[mSegment];
+                    int count = mCounts[mSegment];
+                    while (mNextBlock * INDEX_BLOCK < count) {
+                        int block = mNextBlock++;
+                        boolean match;
+                        synchronized (mSegments) {
+                            match = seg.mayMatch(block, mDevice, mFrom, mTo);
+                        }
+                        if (!match) continue;
+                        int first = block * INDEX_BLOCK;
+                        int n = Math.min(count - first, INDEX_BLOCK);
+                        if (mFile == null) mFile = new RandomAccessFile(seg.file, "r");
+                        mFile.seek(HEADER_SIZE + (long) first * RECORD_SIZE);
+                        mFile.readFully(mBlock, 0, n * RECORD_SIZE);
+                        mBlockFirst = mBases[mSegment] + first;
+                        mBlocksRead++;
+                        mInBlock = n;
+                        mPosition = 0;
+                        return true;
+                    }
+                    closeFile();
+                }
+                mSegment++;
+                mNextBlock = 0;
+            }
+            return false;
+        }
+
+        private void closeFile() throws IOException {
+            if (mFile == null) return;
+            mFile.close();
+            mFile = null;
+        }
+    }
+
+    private final File mDir;
+    private final int mSegmentRecords;
+    private final long mCommitIntervalNanos;
+
+    // Segments oldest first, guarded by itself
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    // Newest reading of every device by time, appended or stored; guarded by itself
+    private final HashMap<Long, Reading> mLatest = new HashMap<Long, Reading>();
+
+    // Only used by the writer thread (and the constructor)
+    private Segment mActive;
+    private int mActiveCapacity;
+    private RandomAccessFile mActiveFile;
+    private MappedByteBuffer mMap;
+    private final byte[] mRecord = new byte[RECORD_SIZE];
+    private final ByteBuffer mRecordBuffer = ByteBuffer.wrap(mRecord);
+    private final CRC32 mCrc = new CRC32();
+
+    // Readings waiting for the writer, guarded by mLock. The writer swaps
+    // the pending arrays with its own, like WriteThread does with bytes.
+    private final Object mLock = new Object();
+    private long[] mPendingDevices;
+    private long[] mPendingTimes;
+    private double[] mPendingValues;
+    private int mPendingCount;
+    private long mFirstPending;
+    private long[] mWritingDevices;
+    private long[] mWritingTimes;
+    private double[] mWritingValues;
+    private long mAppended;
+    private long mCommitted;
+    private boolean mClosed;
+
+    // Statistics
+    private volatile long mDropped;
+    private volatile long mCommits;
+    private volatile long mRecovered;
+
+    // Records in the log when it was opened; the position of the first
+    // reading appended
+    private final long mBase;
+
+    private final Thread mWriter = new Thread("ReadingLog") {
+        public void run() {
+            writeLoop();
+        }
+    };
+
+    public ReadingLog(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_RECORDS, DEFAULT_COMMIT_INTERVAL_MS, DEFAULT_PENDING_CAPACITY);
+    }
+
+    /**
+     * Open the log in dir, creating it if needed, and recover what is there.
+     * @param segmentRecords    Records per segment file
+     * @param commitIntervalMs  Longest time an appended reading waits to
+     *                          be forced to disk
+     * @param pendingCapacity   Readings that may wait for the writer before
+     *                          append() starts dropping them
+     */
+    public ReadingLog(File dir, int segmentRecords, long commitIntervalMs, int pendingCapacity)
+            throws IOException {
+        if (segmentRecords < 1 || commitIntervalMs < 0 || pendingCapacity < 1) {
+            throw new IllegalArgumentException("bad reading log parameters");
+        }
+        mDir = dir;
+        mSegmentRecords = segmentRecords;
+        mCommitIntervalNanos = commitIntervalMs * 1000000L;
+        mPendingDevices = new long[pendingCapacity];
+        mPendingTimes = new long[pendingCapacity];
+        mPendingValues = new double[pendingCapacity];
+        mWritingDevices = new long[pendingCapacity];
+        mWritingTimes = new long[pendingCapacity];
+        mWritingValues = new double[pendingCapacity];
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        recover();
+        mBase = getCount();
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /**
+     * Queue a reading for writing. Never blocks on I/O.
+     * @param device  Device id, see {@link #deviceId(String)}
+     * @param timeMs  Time of the reading, ms since the epoch
+     * @return The position of the reading in the log, or -1 if the log is
+     *         closed or too far behind, in which case the reading is dropped
+     */
+    public long append(long device, long timeMs, double value) {
+        long position;
+        synchronized (mLock) {
+            if (mClosed || mPendingCount == mPendingDevices.length) {
+                mDropped++;
+                return -1;
+            }
+            if (mPendingCount == 0) {
+                mFirstPending = System.nanoTime();
+                mLock.notifyAll();
+            } else if (mPendingCount == mPendingDevices.length / 2) {
+                // Do not wait for the interval with a half full buffer
+                mLock.notifyAll();
+            }
+            int i = mPendingCount++;
+            mPendingDevices[i] = device;
+            mPendingTimes[i] = timeMs;
+            mPendingValues[i] = value;
+            position = mBase + mAppended++;
+        }
+        updateLatest(device, timeMs, value);
+        return position;
+    }
+
+    /**
+     * Return the newest reading of a device by time, including readings
+     * still pending, or null if it has none.
+     */
+    public Reading getLatest(long device) {
+        synchronized (mLatest) {
+            return mLatest.get(device);
+        }
+    }
+
+    /**
+     * Return the newest reading of every device that has one.
+     */
+    public ArrayList<Reading> getLatest() {
+        synchronized (mLatest) {
+            return new ArrayList<Reading>(mLatest.values());
+        }
+    }
+
+    private void updateLatest(long device, long timeMs, double value) {
+        synchronized (mLatest) {
+            Reading latest = mLatest.get(device);
+            if (latest == null || timeMs >= latest.getTime()) {
+                mLatest.put(device, new Reading(device, timeMs, value));
+            }
+        }
+    }
+
+    /**
+     * Wait until everything appended so far is on disk.
+     * @return false if the log was closed or the wait interrupted first
+     */
+    public boolean sync() {
+        synchronized (mLock) {
+            long target = mAppended;
+            mFirstPending = System.nanoTime() - mCommitIntervalNanos;
+            mLock.notifyAll();
+            while (mCommitted < target && !mClosed) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return mCommitted >= target;
+        }
+    }
+
+    /**
+     * Commit what is pending and stop the writer. Readings appended
+     * afterwards are dropped.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+        try {
+            mWriter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Return the number of readings in the log, written or pending.
+     */
+    public long getCount() {
+        long count = 0;
+        synchronized (mSegments) {
+            for (Segment s : mSegments) count += s.count;
+        }
+        synchronized (mLock) {
+            return count + mPendingCount;
+        }
+    }
+
+    /** Readings dropped because the log was closed or full. */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    /** Number of group commits (fsyncs) made. */
+    public long getCommitCount() {
+        return mCommits;
+    }
+
+    /** Records found after the checkpoints when the log was opened. */
+    public long getRecoveredCount() {
+        return mRecovered;
+    }
+
+    public int getSegmentCount() {
+        synchronized (mSegments) {
+            return mSegments.size();
+        }
+    }
+
+    /**
+     * Visit every written reading, oldest first. Readings still pending are
+     * not visited; call sync() first to include them.
+     */
+    public void scan(Visitor visitor) throws IOException {
+        Cursor cursor = query(ANY_DEVICE, Long.MIN_VALUE, Long.MAX_VALUE);
+        try {
+            while (cursor.moveToNext()) {
+                if (!visitor.visit(cursor.getDevice(), cursor.getTime(), cursor.getValue())) return;
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return a cursor over the written readings of a device, or of every
+     * device for ANY_DEVICE, with fromMs <= time <= toMs, oldest written
+     * first. Nothing is read until the cursor is moved.
+     */
+    public Cursor query(long device, long fromMs, long toMs) {
+        return new Cursor(device, fromMs, toMs);
+    }
+
+    // Bit of a device in the device filter of an index block
+    static long deviceBit(long device) {
+        long h = device * 0x9e3779b97f4a7c15L;
+        return 1L << (h >>> 58);
+    }
+
+    /**
+     * Return the id of a device: its MAC address "00:11:22:33:44:55" as a
+     * 48 bit number, or for any other name a hash of it with bit 48 set.
+     */
+    public static long deviceId(String address) {
+        if (address == null) return 0;
+        if (address.length() == 17) {
+            long id = 0;
+            boolean mac = true;
+            for (int i = 0; i < 17 && mac; i++) {
+                char c = address.charAt(i);
+                if (i % 3 == 2) {
+                    mac = c == ':';
+                } else {
+                    int d = Character.digit(c, 16);
+                    mac = d >= 0;
+                    id = (id << 4) | d;
+                }
+            }
+            if (mac) return id;
+        }
+        return (1L << 48) | (address.hashCode() & 0xffffffffL);
+    }
+
+    /**
+     * Return the MAC address of a device id, or null if the id was made
+     * from another kind of name.
+     */
+    public static String deviceAddress(long id) {
+        if ((id >>> 48) != 0) return null;
+        StringBuilder sb = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int b = (int) (id >>> shift) & 0xff;
+            sb.append(Character.toUpperCase(Character.forDigit(b >> 4, 16)))
+                    .append(Character.toUpperCase(Character.forDigit(b & 0xf, 16)));
+            if (shift > 0) sb.append(':');
+        }
+        return sb.toString();
+    }
+
+    // ---- Recovery ----
+
+    private void recover() throws IOException {
+        String[] names = mDir.list();
+        ArrayList<Integer> indexes = new ArrayList<Integer>();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) continue;
+                try {
+                    indexes.add(Integer.parseInt(
+                            name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        Integer[] sorted = indexes.toArray(new Integer[indexes.size()]);
+        Arrays.sort(sorted);
+
+        for (int i = 0; i < sorted.length; i++) {
+            Segment segment = new Segment(sorted[i], segmentFile(sorted[i]));
+            boolean last = i == sorted.length - 1;
+            openSegment(segment);
+            if (!last) {
+                closeActive();
+                if (segment.count == 0) {
+                    // An empty segment in the middle is of no use
+                    if (!segment.file.delete()) Log.w(TAG, "cannot delete " + segment.file);
+                    continue;
+                }
+            }
+            synchronized (mSegments) {
+                mSegments.add(segment);
+            }
+        }
+        if (mActive == null) {
+            startSegment(0);
+        } else if (mActive.count == mActiveCapacity) {
+            startSegment(mActive.index + 1);
+        }
+        Log.i(TAG, "opened " + mDir + ": " + getCount() + " readings, "
+                + mRecovered + " recovered after checkpoints");
+    }
+
+    /**
+     * Map a segment, make it the active one and find its end: the
+     * checkpoint, plus any valid records written after it.
+     */
+    private void openSegment(Segment segment) throws IOException {
+        mActiveFile = new RandomAccessFile(segment.file, "rw");
+        FileChannel channel = mActiveFile.getChannel();
+        int capacity = mSegmentRecords;
+        boolean fresh = true;
+        if (mActiveFile.length() >= HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            if (header.getInt(0) == MAGIC) {
+                if (header.getInt(4) != VERSION || header.getInt(8) != RECORD_SIZE
+                        || header.getInt(12) < 1) {
+                    throw new IOException("unsupported segment " + segment.file);
+                }
+                // Keep the capacity the segment was made with
+                capacity = header.getInt(12);
+                fresh = false;
+            }
+        }
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        if (mActiveFile.length() < size) mActiveFile.setLength(size);
+        mMap = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mActive = segment;
+        mActiveCapacity = capacity;
+
+        segment.allocateIndex(capacity);
+        if (fresh) {
+            writeHeader(0);
+            segment.count = 0;
+            return;
+        }
+        int checkpoint = Math.max(0, Math.min(mMap.getInt(HEADER_CHECKPOINT), capacity));
+        int count = checkpoint;
+        while (count < capacity && isValid(count)) count++;
+        if (count > checkpoint) {
+            mRecovered += count - checkpoint;
+            writeHeader(count);
+            mMap.force();
+        }
+        for (int n = 0; n < count; n++) {
+            int off = HEADER_SIZE + n * RECORD_SIZE;
+            long time = mMap.getLong(off);
+            long device = mMap.getLong(off + 8);
+            segment.addToIndex(n, device, time);
+            updateLatest(device, time, mMap.getDouble(off + 16));
+        }
+        segment.count = count;
+    }
+
+    private boolean isValid(int record) {
+        int off = HEADER_SIZE + record * RECORD_SIZE;
+        for (int i = 0; i < RECORD_SIZE; i++) mRecord[i] = mMap.get(off + i);
+        mCrc.reset();
+        mCrc.update(mRecord, 0, CRC_OFFSET);
+        return (int) mCrc.getValue() == mRecordBuffer.getInt(CRC_OFFSET);
+    }
+
+    private void writeHeader(int checkpoint) {
+        mMap.putInt(0, MAGIC);
+        mMap.putInt(4, VERSION);
+        mMap.putInt(8, RECORD_SIZE);
+        mMap.putInt(12, mActiveCapacity);
+        mMap.putInt(HEADER_CHECKPOINT, checkpoint);
+    }
+
+    private File segmentFile(int index) {
+        return new File(mDir, PREFIX + String.format(Locale.US, "%08d", index) + SUFFIX);
+    }
+
+    private void startSegment(int index) throws IOException {
+        closeActive();
+        Segment segment = new Segment(index, segmentFile(index));
+        openSegment(segment);
+        mMap.force();
+        synchronized (mSegments) {
+            mSegments.add(segment);
+        }
+    }
+
+    private void closeActive() throws IOException {
+        if (mActiveFile == null) return;
+        mMap = null;
+        mActiveFile.close();
+        mActiveFile = null;
+    }
+
+    // ---- Writer thread ----
+
+    private void writeLoop() {
+        while (true) {
+            int n;
+            boolean closed;
+            synchronized (mLock) {
+                try {
+                    while (!mClosed && !shouldCommit()) {
+                        if (mPendingCount == 0) {
+                            mLock.wait();
+                        } else {
+                            long waitNanos = mFirstPending + mCommitIntervalNanos - System.nanoTime();
+                            if (waitNanos > 0) {
+                                mLock.wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    mClosed = true;
+                }
+                closed = mClosed;
+                long[] devices = mWritingDevices;
+                long[] times = mWritingTimes;
+                double[] values = mWritingValues;
+                mWritingDevices = mPendingDevices;
+                mWritingTimes = mPendingTimes;
+                mWritingValues = mPendingValues;
+                mPendingDevices = devices;
+                mPendingTimes = times;
+                mPendingValues = values;
+                n = mPendingCount;
+                mPendingCount = 0;
+            }
+
+            // Write and force outside the lock, append() never waits for it
+            boolean failed = false;
+            try {
+                if (n > 0) commit(n);
+            } catch (IOException e) {
+                Log.e(TAG, "commit of " + n + " readings failed", e);
+                failed = true;
+            }
+            synchronized (mLock) {
+                if (failed) mDropped += n;
+                mCommitted += n;
+                mLock.notifyAll();
+            }
+
+            if (closed) {
+                try {
+                    closeActive();
+                } catch (IOException e) {
+                    Log.e(TAG, "close failed", e);
+                }
+                return;
+            }
+        }
+    }
+
+    // Called with mLock held
+    private boolean shouldCommit() {
+        if (mPendingCount == 0) return false;
+        if (mPendingCount >= mPendingDevices.length / 2) return true;
+        return System.nanoTime() - mFirstPending >= mCommitIntervalNanos;
+    }
+
+    /**
+     * Write the first n readings of the writing arrays, rolling over to new
+     * segments as they fill, then force them and move the checkpoint.
+     */
+    private void commit(int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            if (mActive.count == mActiveCapacity) {
+                // Seal the full segment before starting the next
+                mMap.force();
+                writeHeader(mActive.count);
+                mMap.force();
+                startSegment(mActive.index + 1);
+            }
+            mRecordBuffer.putLong(0, mWritingTimes[i]);
+            mRecordBuffer.putLong(8, mWritingDevices[i]);
+            mRecordBuffer.putDouble(16, mWritingValues[i]);
+            mRecordBuffer.putInt(24, 0);
+            mCrc.reset();
+            mCrc.update(mRecord, 0, CRC_OFFSET);
+            mRecordBuffer.putInt(CRC_OFFSET, (int) mCrc.getValue());
+            mMap.position(HEADER_SIZE + mActive.count * RECORD_SIZE);
+            mMap.put(mRecord);
+            synchronized (mSegments) {
+                mActive.addToIndex(mActive.count, mWritingDevices[i], mWritingTimes[i]);
+                mActive.count++;
+            }
+        }
+        // Records first, then the checkpoint that covers them
+        mMap.force();
+        writeHeader(mActive.count);
+        mMap.force();
+        mCommits++;
+    }
+}
@@ -0,0 +1,73 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.util.Random;
+
+/**
+ * Delays between reconnect attempts after a link was lost: exponential
+ * backoff with jitter and a cap on the number of attempts.
+ *
+ * Attempt n (starting at 0) waits a random time in
+ * [(1 - jitter) * d, d] with d = min(maxDelay, baseDelay * 2^n), so that
+ * several handsets losing the same device do not retry in lock step.
+ */
+public class ReconnectPolicy {
+
+    public static final long DEFAULT_BASE_DELAY_MS = 500;
+    public static final long DEFAULT_MAX_DELAY_MS = 30000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final float DEFAULT_JITTER = 0.5f;
+
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+    private final int mMaxAttempts;
+    private final float mJitter;
+    private final Random mRandom = new Random();
+
+    public ReconnectPolicy() {
+        this(DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, DEFAULT_MAX_ATTEMPTS, DEFAULT_JITTER);
+    }
+
+    /**
+     * @param baseDelayMs  Delay before the first attempt, before jitter
+     * @param maxDelayMs   Upper bound of any delay
+     * @param maxAttempts  Attempts before giving up, 0 disables reconnecting
+     * @param jitter       Fraction of the delay that is randomized (0..1)
+     */
+    public ReconnectPolicy(long baseDelayMs, long maxDelayMs, int maxAttempts, float jitter) {
+        if (baseDelayMs < 0 || maxDelayMs < baseDelayMs || maxAttempts < 0
+                || jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("bad reconnect policy");
+        }
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mMaxAttempts = maxAttempts;
+        mJitter = jitter;
+    }
+
+    /**
+     * Return true if attempt number attempt (starting at 0) may be made.
+     */
+    public boolean shouldRetry(int attempt) {
+        return attempt < mMaxAttempts;
+    }
+
+    /**
+     * Return the time to wait before attempt number attempt, in ms.
+     */
+    public long getDelay(int attempt) {
+        long delay = mBaseDelayMs;
+        for (int i = 0; i < attempt && delay < mMaxDelayMs; i++) {
+            delay <<= 1;
+        }
+        delay = Math.min(delay, mMaxDelayMs);
+        long spread = (long) (delay * mJitter);
+        if (spread <= 0) return delay;
+        synchronized (mRandom) {
+            return delay - (long) (mRandom.nextDouble() * spread);
+        }
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+}
@@ -4,29 +4,36 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.Window;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.ArrayList;
-
-import cn.com.contec.jar.eartemperture.DeviceCommand;
-import cn.com.contec.jar.eartemperture.DevicePackManager;
-import cn.com.contec.jar.eartemperture.EarTempertureDataJar;
-
+/**
+ * Shows the readings and the connection state. The connection itself lives
+ * in the {@link IngestService}, which this Activity binds to and attaches
+ * its Handler to, so rotating the screen or leaving the app does not drop
+ * the link.
+ */
 public class RemoteBluetooth extends Activity {
+	private static final String TAG = "RemoteBluetooth";
+	// Enabled with "adb shell setprop log.tag.RemoteBluetooth DEBUG"
+	private static final boolean D = Log.isLoggable(TAG, Log.DEBUG);
 	
 	// Layout view
 	private TextView mTitle;
@@ -42,22 +49,26 @@ public class RemoteBluetooth extends Activity {
     public static final int MESSAGE_WRITE = 3;
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
+    public static final int MESSAGE_DATA = 6;
+    public static final int MESSAGE_READING_LOG = 7;
 
-    ArrayList list=new ArrayList();
-    ArrayAdapter adapter;
+    ReadingAdapter adapter;
     
     // Key names received from the BluetoothCommandService Handler
     public static final String DEVICE_NAME = "device_name";
+    public static final String DEVICE_ADDRESS = "device_address";
     public static final String TOAST = "toast";
 	
 	// Name of the connected device
     private String mConnectedDeviceName = null;
     // Local Bluetooth adapter
     private BluetoothAdapter mBluetoothAdapter = null;
-    // Member object for Bluetooth Command Service
+    // Member object for Bluetooth Command Service, owned by mIngestService
     private BluetoothCommandService mCommandService = null;
+    // Hosts the connection, null until bound
+    private IngestService mIngestService = null;
+    private boolean mBound = false;
 
-    DevicePackManager mDevicepackManager=new DevicePackManager();
 	
     /** Called when the activity is first created. */
     @Override
@@ -76,6 +87,8 @@ public class RemoteBluetooth extends Activity {
 
         fetchData=findViewById(R.id.fetchData);
         infolistView=findViewById(R.id.infolistView);
+        adapter=new ReadingAdapter(this);
+        infolistView.setAdapter(adapter);
 
         // Get local Bluetooth adapter
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -92,7 +105,8 @@ public class RemoteBluetooth extends Activity {
             public void onClick(View v) {
 
 
-                mCommandService.write(DeviceCommand.commandConfirmEquipment());
+                if (mCommandService != null)
+                    mCommandService.write(ContecCodec.CONFIRM_EQUIPMENT);
 
 
 
@@ -112,7 +126,7 @@ public class RemoteBluetooth extends Activity {
 		}
 		// otherwise set up the command service
 		else {
-			if (mCommandService==null)
+			if (!mBound)
 				setupCommand();
 		}
 	}
@@ -132,16 +146,43 @@ public class RemoteBluetooth extends Activity {
 	}
 
 	private void setupCommand() {
-		// Initialize the BluetoothChatService to perform bluetooth connections
-        mCommandService = new BluetoothCommandService(this, mHandler);
+		// Start the service that performs bluetooth connections, and keep
+		// it started so it outlives this Activity
+		Intent intent = new Intent(this, IngestService.class);
+		startService(intent);
+		mBound = bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
 	}
 
+	private final ServiceConnection mConnection = new ServiceConnection() {
+		public void onServiceConnected(ComponentName name, IBinder binder) {
+			mIngestService = ((IngestService.LocalBinder) binder).getService();
+			mCommandService = mIngestService.getCommandService();
+			mIngestService.attach(mHandler);
+			if (mCommandService.getState() == BluetoothCommandService.STATE_NONE)
+				mCommandService.start();
+		}
+
+		public void onServiceDisconnected(ComponentName name) {
+			if (D) Log.d(TAG, "service disconnected");
+			mIngestService = null;
+			mCommandService = null;
+		}
+	};
+
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
 		
-		if (mCommandService != null)
-			mCommandService.stop();
+		// Leave the connection to the service, it keeps running if connected
+		if (mIngestService != null)
+			mIngestService.detach(mHandler);
+		if (mBound) {
+			unbindService(mConnection);
+			mBound = false;
+		}
+		mIngestService = null;
+		mCommandService = null;
+		adapter.close();
 	}
 	
 	private void ensureDiscoverable() {
@@ -181,53 +222,21 @@ public class RemoteBluetooth extends Activity {
                     Toast.makeText(getApplicationContext(), "Connected to "
                             + mConnectedDeviceName, Toast.LENGTH_SHORT).show();
                     break;
+                case MESSAGE_READING_LOG: {
+                    // Show the readings stored so far, loaded as the list scrolls
+                    ReadingLog log = (ReadingLog) msg.obj;
+                    adapter.setCursor(log.query(ReadingLog.ANY_DEVICE, Long.MIN_VALUE, Long.MAX_VALUE));
+                    break;
+                }
                 case MESSAGE_TOAST:
                 {Toast.makeText(getApplicationContext(), msg.getData().getString(TOAST),
                             Toast.LENGTH_SHORT).show();
                     break;
                  }
-                case MESSAGE_READ: {
-                  //  Toast.makeText(getApplicationContext(), msg.obj + " ", Toast.LENGTH_SHORT).show();
-                    int receivedNum = mDevicepackManager.arrangeMessage((byte[]) msg.obj, msg.arg1);
-                  //  Toast.makeText(getApplicationContext(), "number " + receivedNum, Toast.LENGTH_SHORT).show();
-
-                  /*  switch (receivedNum) {
-                        case 8: {
-                            mCommandService.write(DeviceCommand.command_VerifyTime());
-                        }
-
-                        case 3: {
-                            mCommandService.write(DeviceCommand.command_requestAllData());
-                        }
-
-                        case 4: {
-
-                        }
-
-                        case 1: {
-                            for (int i = 0; i < mDevicepackManager.m_DeviceDatas.size(); i++) {
-                                //save data
-                                Toast.makeText(RemoteBluetooth.this, mDevicepackManager.m_DeviceDatas.get(i).m_data + "temp", Toast.LENGTH_LONG).show();
-
-                                list.add(mDevicepackManager.m_DeviceDatas.get(i).m_data+" "+mDevicepackManager.m_DeviceDatas.get(i).m_saveDate);
-                            }
-
-                            //clear data collection
-                           // mDevicepackManager.m_DeviceDatas.clear();
-
-
-
-                        }
-
-                        case 7:
-                            adapter=new ArrayAdapter(getApplicationContext(),android.R.layout.simple_list_item_1,list);
-                            infolistView.setAdapter(adapter);
-                            Toast.makeText(RemoteBluetooth.this, "Finished receiving", Toast.LENGTH_SHORT).show();
-                            break;
-
-
-                    }
-                */
+                case MESSAGE_DATA: {
+                    // Readings decoded by the DecodeThread since the last update
+                    adapter.addAll((ReadingColumns) msg.obj);
+                    break;
                 }
 
             }
@@ -244,8 +253,18 @@ public class RemoteBluetooth extends Activity {
                                      .getString(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
                 // Get the BLuetoothDevice object
                 BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-                // Attempt to connect to the device
-                mCommandService.connect(device);
+                String[] candidates = data.getStringArrayExtra(DeviceListActivity.EXTRA_CANDIDATES);
+                if (mCommandService == null) break;
+                if (candidates != null) {
+                    // Not sure which one it is; connect to whichever answers
+                    BluetoothDevice[] devices = new BluetoothDevice[candidates.length];
+                    for (int i = 0; i < candidates.length; i++)
+                        devices[i] = mBluetoothAdapter.getRemoteDevice(candidates[i]);
+                    mCommandService.connect(devices);
+                } else {
+                    // Attempt to connect to the device
+                    mCommandService.connect(device);
+                }
             }
             break;
         case REQUEST_ENABLE_BT:
@@ -276,6 +295,13 @@ public class RemoteBluetooth extends Activity {
         	Intent serverIntent = new Intent(this, DeviceListActivity.class);
             startActivityForResult(serverIntent, REQUEST_CONNECT_DEVICE);
             return true;
+        case R.id.auto_connect:
+            // Let the DeviceListActivity pick the best thermometer
+            Intent autoIntent = new Intent(this, DeviceListActivity.class);
+            autoIntent.putExtra(DeviceListActivity.EXTRA_FILTER, true);
+            autoIntent.putExtra(DeviceListActivity.EXTRA_AUTO_CONNECT, true);
+            startActivityForResult(autoIntent, REQUEST_CONNECT_DEVICE);
+            return true;
         case R.id.discoverable:
             // Ensure this device is discoverable by others
             ensureDiscoverable();
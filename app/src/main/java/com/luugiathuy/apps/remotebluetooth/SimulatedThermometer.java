@@ -0,0 +1,360 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory Contec ear thermometer, for exercising the protocol without
+ * hardware. It is a {@link Transport}: hand it to the code under test and
+ * it plays the device end over a pair of piped streams.
+ *
+ * The device first sends a 0xA5 0x55 config frame and waits for the host's
+ * config reply. It then sends numbered 0xA5 0xAA data frames of
+ * {@link FrameDecoder#DATA_FRAME_LENGTH} bytes, with the sequence number in
+ * byte 3. When ACKs are required, it waits for the ACK of each frame and
+ * sends it again after a NAK. With a window above 1 it keeps that many
+ * frames unacknowledged in flight and takes an ACK as acknowledging every
+ * frame up to its sequence number. Whatever the host writes is read in
+ * every mode, so it never blocks on a full pipe. Once all frames are sent
+ * the device stays connected and quiet until close().
+ *
+ * Of the host's commands it only understands the time read, which it
+ * answers with its clock packet, as keep-alive probes expect.
+ *
+ * Pure Java, so it also runs on a plain JVM for load tests.
+ */
+public class SimulatedThermometer implements Transport {
+
+    /**
+     * Behaviour of the simulated device. Public fields, set before start().
+     */
+    public static class Config {
+        /** Data frames to send before the device goes quiet, -1 = forever */
+        public int frameCount = 100;
+        /** Data frames per second, 0 = as fast as the link allows */
+        public int frameRate = 0;
+        /** Largest piece a frame is written in, 0 = whole frames */
+        public int maxChunk = 0;
+        /** Probability (0..1) that a sent frame gets one byte flipped */
+        public float corruptRate = 0f;
+        /** Delay before every write, in ms */
+        public long latencyMs = 0;
+        /** Wait for the ACK of a frame before sending the next one */
+        public boolean ackRequired = true;
+        /** Resends of one frame after NAKs before moving on */
+        public int maxRetransmits = 3;
+        /** Unacknowledged frames in flight, 1 = stop-and-wait; ACKs are cumulative above 1 */
+        public int window = 1;
+        /** Seed of the random generator, for repeatable runs */
+        public long seed = 1;
+        /** Size of each pipe buffer */
+        public int pipeSize = 8192;
+        /** Answer time reads; false plays a device that hangs but stays connected */
+        public boolean answerTimeRead = true;
+    }
+
+    private final Config mConfig;
+    private final Random mRandom;
+
+    // Device to host
+    private final PipedInputStream mHostIn;
+    private final PipedOutputStream mDeviceOut;
+    // Host to device
+    private final PipedOutputStream mHostOut;
+    private final PipedInputStream mDeviceIn;
+
+    private final DeviceThread mThread = new DeviceThread();
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile boolean mClosed;
+
+    // Statistics
+    private volatile long mFramesSent;
+    private volatile long mRetransmits;
+    private volatile long mCorrupted;
+    private volatile long mAcks;
+    private volatile long mNaks;
+    private volatile long mTimeReads;
+
+    public SimulatedThermometer(Config config) throws IOException {
+        mConfig = config;
+        mRandom = new Random(config.seed);
+        mHostIn = new PipedInputStream(config.pipeSize);
+        mDeviceOut = new PipedOutputStream(mHostIn);
+        mDeviceIn = new PipedInputStream(config.pipeSize);
+        mHostOut = new PipedOutputStream(mDeviceIn);
+    }
+
+    /**
+     * Power the device on.
+     */
+    public void start() {
+        mThread.start();
+    }
+
+    public InputStream getInputStream() {
+        return mHostIn;
+    }
+
+    public OutputStream getOutputStream() {
+        return mHostOut;
+    }
+
+    public void close() throws IOException {
+        mClosed = true;
+        mThread.interrupt();
+        mDeviceOut.close();
+        mHostOut.close();
+        mHostIn.close();
+        mDeviceIn.close();
+    }
+
+    /**
+     * Wait until the device has sent all its frames (and had them ACKed),
+     * or has lost the host.
+     * @return false if it timed out
+     */
+    public boolean join(long timeoutMs) throws InterruptedException {
+        return mDone.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public long getFramesSent() {
+        return mFramesSent;
+    }
+
+    public long getRetransmits() {
+        return mRetransmits;
+    }
+
+    public long getCorruptedCount() {
+        return mCorrupted;
+    }
+
+    public long getAckCount() {
+        return mAcks;
+    }
+
+    public long getNakCount() {
+        return mNaks;
+    }
+
+    /** Number of time reads the host sent, answered or not. */
+    public long getTimeReadCount() {
+        return mTimeReads;
+    }
+
+    /**
+     * Fill a data frame for the given sequence number.
+     */
+    static void buildDataFrame(byte[] frame, int seq) {
+        frame[0] = FrameDecoder.HEADER;
+        frame[1] = FrameDecoder.TYPE_DATA;
+        frame[2] = (byte) (FrameDecoder.DATA_FRAME_LENGTH - FrameDecoder.OVERHEAD);
+        frame[3] = (byte) seq;
+        for (int i = 4; i < FrameDecoder.DATA_FRAME_LENGTH - 1; i++) {
+            frame[i] = (byte) (seq + i);
+        }
+        frame[FrameDecoder.DATA_FRAME_LENGTH - 1] =
+                (byte) Crc8.compute(frame, 0, FrameDecoder.DATA_FRAME_LENGTH - 1);
+    }
+
+    /**
+     * The device side: sends frames and reads the host's replies.
+     */
+    // First byte of the device's clock packet
+    private static final byte PACKET_DEVICE_TIME = 0x23;
+
+    private class DeviceThread extends Thread implements FrameDecoder.Listener {
+        private final FrameDecoder mmDecoder = new FrameDecoder(this);
+        private final byte[] mmReadBuffer = new byte[256];
+        private final byte[] mmFrame = new byte[FrameDecoder.DATA_FRAME_LENGTH];
+        private final byte[] mmWire = new byte[FrameDecoder.DATA_FRAME_LENGTH];
+        private final byte[] mmTimeReply = new byte[ContecCodec.TIME_COMMAND_LENGTH];
+        // Bytes of a time read matched so far, it may span reads
+        private int mmCommandMatched;
+
+        // Last reply seen, set by the decoder callbacks
+        private boolean mmGotConfig;
+        private boolean mmGotReply;
+        private int mmReplySeq;
+        private boolean mmReplyOk;
+
+        // Window mode: sequence number of the oldest unacknowledged frame
+        // and the number of frames from it on that are in flight
+        private int mmOldest;
+        private int mmInFlight;
+
+        DeviceThread() {
+            setName("SimulatedThermometer");
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                byte[] config = {FrameDecoder.HEADER, FrameDecoder.TYPE_CONFIG, 0x01, 0x01, 0};
+                config[4] = (byte) Crc8.compute(config, 0, 4);
+                send(config, config.length);
+                while (!mmGotConfig) readReply();
+
+                long period = mConfig.frameRate > 0 ? 1000000000L / mConfig.frameRate : 0;
+                long next = System.nanoTime();
+                for (int n = 0; mConfig.frameCount < 0 || n < mConfig.frameCount; n++) {
+                    if (period > 0) {
+                        long wait = next - System.nanoTime();
+                        if (wait > 0) Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                        next += period;
+                    }
+                    if (mConfig.ackRequired && mConfig.window > 1) {
+                        sendWindowed(n & 0xff);
+                    } else {
+                        sendDataFrame(n & 0xff);
+                    }
+                }
+                // Wait for the last window to be acknowledged
+                while (mmInFlight > 0) readReply();
+                mDeviceOut.flush();
+                mDone.countDown();
+
+                // Go quiet, but stay alive: the pipe reports a dead writer
+                // to the host once this thread ends
+                while (!mClosed) readReply();
+            } catch (IOException e) {
+                // Host went away
+            } catch (InterruptedException e) {
+                // Closed
+            } finally {
+                mDone.countDown();
+            }
+        }
+
+        private void sendDataFrame(int seq) throws IOException, InterruptedException {
+            for (int attempt = 0; attempt <= mConfig.maxRetransmits; attempt++) {
+                if (attempt > 0) mRetransmits++;
+                transmit(seq);
+                if (!mConfig.ackRequired) {
+                    // Take in the ACKs anyway, so the host never blocks
+                    while (mDeviceIn.available() > 0) readReply();
+                    return;
+                }
+
+                mmGotReply = false;
+                while (!mmGotReply || mmReplySeq != seq) readReply();
+                if (mmReplyOk) return;
+            }
+        }
+
+        /**
+         * Send a frame with a window of frames in flight, reading the
+         * replies that arrived meanwhile.
+         */
+        private void sendWindowed(int seq) throws IOException, InterruptedException {
+            while (mmInFlight >= mConfig.window) readReply();
+            transmit(seq);
+            mmInFlight++;
+            while (mDeviceIn.available() > 0) readReply();
+        }
+
+        /**
+         * Send a data frame once, maybe corrupted.
+         */
+        private void transmit(int seq) throws IOException, InterruptedException {
+            buildDataFrame(mmFrame, seq);
+            System.arraycopy(mmFrame, 0, mmWire, 0, mmFrame.length);
+            if (mConfig.corruptRate > 0 && mRandom.nextFloat() < mConfig.corruptRate) {
+                // Flip a payload byte so the CRC no longer matches
+                mmWire[4 + mRandom.nextInt(mmWire.length - 5)] ^= 0x5a;
+                mCorrupted++;
+            }
+            send(mmWire, mmWire.length);
+            mFramesSent++;
+        }
+
+        private void send(byte[] frame, int length) throws IOException, InterruptedException {
+            int off = 0;
+            while (off < length) {
+                int n = length - off;
+                if (mConfig.maxChunk > 0) n = Math.min(n, 1 + mRandom.nextInt(mConfig.maxChunk));
+                if (mConfig.latencyMs > 0) Thread.sleep(mConfig.latencyMs);
+                mDeviceOut.write(frame, off, n);
+                off += n;
+            }
+            mDeviceOut.flush();
+        }
+
+        private void readReply() throws IOException, InterruptedException {
+            if (mClosed) throw new IOException("closed");
+            int n = mDeviceIn.read(mmReadBuffer);
+            if (n < 0) throw new IOException("host closed");
+            scanCommands(mmReadBuffer, n);
+            mmDecoder.feed(mmReadBuffer, 0, n);
+        }
+
+        // Commands are not frames, so the decoder skips them; look for the
+        // time read in the bytes themselves
+        private void scanCommands(byte[] buffer, int length)
+                throws IOException, InterruptedException {
+            ContecCodec.Template timeRead = ContecCodec.READ_DEVICE_TIME;
+            for (int i = 0; i < length; i++) {
+                if (buffer[i] == timeRead.byteAt(mmCommandMatched)) {
+                    if (++mmCommandMatched == timeRead.length()) {
+                        mmCommandMatched = 0;
+                        answerTimeRead();
+                    }
+                } else {
+                    mmCommandMatched = buffer[i] == timeRead.byteAt(0) ? 1 : 0;
+                }
+            }
+        }
+
+        private void answerTimeRead() throws IOException, InterruptedException {
+            mTimeReads++;
+            if (!mConfig.answerTimeRead) return;
+            // The clock packet is laid out like the set-time command
+            int n = ContecCodec.encodeVerifyTime(mmTimeReply, 0, System.currentTimeMillis(),
+                    TimeZone.getDefault());
+            mmTimeReply[0] = PACKET_DEVICE_TIME;
+            send(mmTimeReply, n);
+        }
+
+        public void onFrame(byte[] frame, int length) {
+            if (ContecCodec.isConfig(frame)) {
+                mmGotConfig = true;
+            } else if (ContecCodec.isAck(frame, length)) {
+                mmGotReply = true;
+                mmReplySeq = ContecCodec.sequence(frame);
+                mmReplyOk = !ContecCodec.isNak(frame);
+                if (mmReplyOk) mAcks++; else mNaks++;
+                if (mConfig.window > 1) onWindowReply();
+            }
+        }
+
+        private void onWindowReply() {
+            if (mmInFlight == 0) return;
+            int offset = (mmReplySeq - mmOldest) & 0xff;
+            if (offset >= mmInFlight) return;
+            if (mmReplyOk) {
+                // Cumulative: everything up to the acknowledged frame
+                mmOldest = (mmReplySeq + 1) & 0xff;
+                mmInFlight -= offset + 1;
+            } else {
+                try {
+                    mRetransmits++;
+                    transmit(mmReplySeq);
+                } catch (IOException e) {
+                    // Host went away, the next read fails too
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        public void onCorruptFrame(byte[] frame, int length) {
+        }
+    }
+}
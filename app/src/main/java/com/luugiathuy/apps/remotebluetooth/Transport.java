@@ -0,0 +1,24 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte stream connection to a thermometer. ConnectedThread only talks
+ * to this interface, so the protocol can run over an RFCOMM socket
+ * ({@link BluetoothSocketTransport}) or over anything else that provides
+ * a pair of streams, such as {@link SimulatedThermometer}.
+ */
+public interface Transport extends Closeable {
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Close both streams. Must unblock a thread stuck in read().
+     */
+    void close() throws IOException;
+}
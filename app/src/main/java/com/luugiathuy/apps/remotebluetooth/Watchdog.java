@@ -0,0 +1,114 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deadlines for blocking socket calls, and a place to run the calls that
+ * may block so that the thread asking for them does not.
+ *
+ * A thread about to block (in BluetoothSocket.connect(), say) schedules a
+ * deadline whose action unblocks it from outside, normally by closing the
+ * socket, and cancels the deadline once the call returned. Actions and
+ * executed tasks run on worker threads, never on the timer thread, so a
+ * close() that blocks as well cannot hold up other deadlines.
+ *
+ * All threads are daemons; one watchdog is shared by the whole process.
+ */
+public class Watchdog {
+
+    /**
+     * A scheduled deadline. Exactly one of cancel() and the expiry wins.
+     */
+    public interface Deadline {
+        /**
+         * Stop the deadline.
+         * @return true if it had not expired yet, so its action never runs
+         */
+        boolean cancel();
+
+        /** Return true if the deadline passed and its action was started. */
+        boolean hasExpired();
+    }
+
+    private static final int PENDING = 0;
+    private static final int CANCELED = 1;
+    private static final int EXPIRED = 2;
+
+    private static Watchdog sDefault;
+
+    private final ScheduledExecutorService mTimer;
+    private final ExecutorService mWorkers;
+
+    public Watchdog(String name) {
+        mTimer = Executors.newSingleThreadScheduledExecutor(new DaemonFactory(name + "-timer"));
+        mWorkers = Executors.newCachedThreadPool(new DaemonFactory(name));
+    }
+
+    /**
+     * Return the watchdog shared by all sessions.
+     */
+    public static synchronized Watchdog getDefault() {
+        if (sDefault == null) sDefault = new Watchdog("Watchdog");
+        return sDefault;
+    }
+
+    /**
+     * Run action on a worker thread after timeoutMs, unless the returned
+     * deadline is cancelled first.
+     */
+    public Deadline schedule(long timeoutMs, final Runnable action) {
+        final Task task = new Task();
+        task.mFuture = mTimer.schedule(new Runnable() {
+            public void run() {
+                if (task.mState.compareAndSet(PENDING, EXPIRED)) mWorkers.execute(action);
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+        return task;
+    }
+
+    /**
+     * Run a task that may block, such as a close(), on a worker thread.
+     * @return Its Future, to wait for it where blocking is fine
+     */
+    public Future<?> execute(Runnable task) {
+        return mWorkers.submit(task);
+    }
+
+    private static class Task implements Deadline {
+        final AtomicInteger mState = new AtomicInteger(PENDING);
+        volatile ScheduledFuture<?> mFuture;
+
+        public boolean cancel() {
+            if (!mState.compareAndSet(PENDING, CANCELED)) return false;
+            ScheduledFuture<?> future = mFuture;
+            if (future != null) future.cancel(false);
+            return true;
+        }
+
+        public boolean hasExpired() {
+            return mState.get() == EXPIRED;
+        }
+    }
+
+    private static class DaemonFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        DaemonFactory(String name) {
+            mName = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, mName + "-" + mCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.luugiathuy.apps.remotebluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.util.Log;
+
+/**
+ * This thread owns the OutputStream of a connection. Every other thread
+ * (the UI, the reader sending ACKs) only copies its frame into a pending
+ * buffer and returns; the writer sends everything that piled up with a
+ * single write() and flush().
+ *
+ * Two bounds decide when pending bytes go out:
+ * <ul>
+ * <li>idle: flush once no new frame arrived for this long (0 = as soon as
+ * the writer wakes up)</li>
+ * <li>max latency: never hold the oldest pending frame longer than this</li>
+ * </ul>
+ */
+public class WriteThread extends Thread {
+    private static final String TAG = "WriteThread";
+
+    public static final long DEFAULT_IDLE_MS = 0;
+    public static final long DEFAULT_MAX_LATENCY_MS = 5;
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+    // Longest a caller waits for room before its frame is dropped; the
+    // caller may be the UI thread
+    static final long ENQUEUE_TIMEOUT_MS = 100;
+
+    private final OutputStream mOutStream;
+    private final Object mLock = new Object();
+
+    // Bytes waiting to be written, guarded by mLock
+    private byte[] mPending;
+    private int mPendingLength;
+    private long mFirstPending;
+    private long mLastPending;
+    // Callers waiting for room, the writer flushes at once for them
+    private int mWaiting;
+    // Buffer being written by this thread, swapped with mPending
+    private byte[] mWriting;
+
+    private volatile long mIdleNanos;
+    private volatile long mMaxLatencyNanos;
+    private boolean mClosed;
+    private boolean mStopped;
+
+    // Statistics
+    private volatile long mFrames;
+    private volatile long mDropped;
+    private volatile long mWrites;
+    private volatile long mBytes;
+    private volatile Metrics.Counter mBytesOut;
+    private volatile Metrics.Histogram mWriteLatency;
+
+    public WriteThread(OutputStream out) {
+        this(out, DEFAULT_BUFFER_SIZE, DEFAULT_IDLE_MS, DEFAULT_MAX_LATENCY_MS);
+    }
+
+    /**
+     * @param out         The stream of the connection
+     * @param bufferSize  Pending bytes held before writers have to wait,
+     *                    and the longest frame that can be queued
+     * @param idleMs      Flush after this long without new frames
+     * @param maxLatencyMs  Flush at the latest this long after the oldest frame
+     */
+    public WriteThread(OutputStream out, int bufferSize, long idleMs, long maxLatencyMs) {
+        mOutStream = out;
+        mPending = new byte[bufferSize];
+        mWriting = new byte[bufferSize];
+        setBounds(idleMs, maxLatencyMs);
+        setName("WriteThread");
+    }
+
+    /**
+     * Change the flush bounds of a running writer.
+     */
+    public void setBounds(long idleMs, long maxLatencyMs) {
+        if (idleMs < 0 || maxLatencyMs < idleMs) {
+            throw new IllegalArgumentException("bad bounds " + idleMs + "/" + maxLatencyMs);
+        }
+        mIdleNanos = idleMs * 1000000L;
+        mMaxLatencyNanos = maxLatencyMs * 1000000L;
+    }
+
+    /**
+     * Report written bytes, and the time from queueing the oldest byte of
+     * a write to the end of its flush (ns), to the given metrics. Either
+     * may be null.
+     */
+    public void setMetrics(Metrics.Counter bytesOut, Metrics.Histogram writeLatency) {
+        mBytesOut = bytesOut;
+        mWriteLatency = writeLatency;
+    }
+
+    /**
+     * Queue bytes for writing. The bytes are copied, so the caller may
+     * reuse the array as soon as this returns. If the writer is behind,
+     * waits at most ENQUEUE_TIMEOUT_MS for room and then drops the frame
+     * rather than block the caller any longer.
+     * @return false if the writer is closed or the frame was dropped
+     */
+    public boolean enqueue(byte[] buffer, int offset, int length) {
+        if (length > mPending.length) {
+            Log.w(TAG, "frame of " + length + " bytes does not fit the buffer, dropped");
+            mDropped++;
+            return false;
+        }
+        synchronized (mLock) {
+            long deadline = 0;
+            while (!mClosed && mPending.length - mPendingLength < length) {
+                // Writer is behind, wait a little for it to take the buffer
+                long now = System.nanoTime();
+                if (deadline == 0) deadline = now + ENQUEUE_TIMEOUT_MS * 1000000L;
+                long waitNanos = deadline - now;
+                if (waitNanos <= 0) {
+                    Log.w(TAG, "writer behind for " + ENQUEUE_TIMEOUT_MS + " ms, frame dropped");
+                    mDropped++;
+                    return false;
+                }
+                mWaiting++;
+                mLock.notifyAll();
+                try {
+                    mLock.wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } finally {
+                    mWaiting--;
+                }
+            }
+            if (mClosed) return false;
+            long now = System.nanoTime();
+            if (mPendingLength == 0) mFirstPending = now;
+            mLastPending = now;
+            System.arraycopy(buffer, offset, mPending, mPendingLength, length);
+            mPendingLength += length;
+            mFrames++;
+            mLock.notifyAll();
+            return true;
+        }
+    }
+
+    public boolean enqueue(byte[] buffer) {
+        return enqueue(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Queue a constant command or frame.
+     * @return false if the writer is closed
+     */
+    public boolean enqueue(ContecCodec.Template template) {
+        return enqueue(template.array(), 0, template.length());
+    }
+
+    public void run() {
+        Log.i(TAG, "BEGIN mWriteThread");
+        try {
+            writeLoop();
+        } finally {
+            synchronized (mLock) {
+                mStopped = true;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            int length;
+            long queued;
+            synchronized (mLock) {
+                try {
+                    while (!mClosed && !shouldFlush()) {
+                        if (mPendingLength == 0) {
+                            mLock.wait();
+                        } else {
+                            long now = System.nanoTime();
+                            long until = Math.min(mLastPending + mIdleNanos,
+                                    mFirstPending + mMaxLatencyNanos);
+                            long waitNanos = until - now;
+                            if (waitNanos > 0) {
+                                mLock.wait(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (mPendingLength == 0 && mClosed) break;
+
+                byte[] tmp = mWriting;
+                mWriting = mPending;
+                mPending = tmp;
+                length = mPendingLength;
+                queued = mFirstPending;
+                mPendingLength = 0;
+                mLock.notifyAll();
+            }
+
+            // Perform the write outside the lock
+            try {
+                mOutStream.write(mWriting, 0, length);
+                mOutStream.flush();
+                mWrites++;
+                mBytes += length;
+                Metrics.Counter bytesOut = mBytesOut;
+                if (bytesOut != null) bytesOut.add(length);
+                Metrics.Histogram latency = mWriteLatency;
+                if (latency != null) latency.record(System.nanoTime() - queued);
+            } catch (IOException e) {
+                Log.e(TAG, "Exception during write", e);
+            }
+        }
+    }
+
+    // Called with mLock held
+    private boolean shouldFlush() {
+        if (mPendingLength == 0) return false;
+        if (mPendingLength == mPending.length || mWaiting > 0) return true;
+        long now = System.nanoTime();
+        return now - mLastPending >= mIdleNanos || now - mFirstPending >= mMaxLatencyNanos;
+    }
+
+    /**
+     * Write out what is pending and stop the thread. Does not close the stream.
+     */
+    public void cancel() {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until the thread has written what was pending and stopped.
+     * @return true if it stopped within the timeout
+     */
+    public boolean awaitStopped(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (mLock) {
+            while (!mStopped) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return false;
+                try {
+                    mLock.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Number of frames queued so far. */
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /** Number of frames dropped because the writer was behind. */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    /** Number of write() calls made on the stream. */
+    public long getWriteCount() {
+        return mWrites;
+    }
+
+    public long getByteCount() {
+        return mBytes;
+    }
+}
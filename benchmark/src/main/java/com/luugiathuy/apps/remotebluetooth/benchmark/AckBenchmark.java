@@ -0,0 +1,53 @@
+package com.luugiathuy.apps.remotebluetooth.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.luugiathuy.apps.remotebluetooth.ContecCodec;
+import com.luugiathuy.apps.remotebluetooth.Crc8;
+
+/**
+ * Building the 6 byte ACK/NAK reply to a data frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AckBenchmark {
+
+    private final byte[] mOut = new byte[ContecCodec.ACK_LENGTH];
+    private int mSeq;
+
+    /** As ConnectedThread.acknowledge() did before ContecCodec: a new array per reply */
+    @Benchmark
+    public byte[] allocating() {
+        byte[] writeBuffer = new byte[]{(byte) 0xa5, (byte) 0xaa, 0x02, 0x00, 0x00, (byte) 0xf7};
+        writeBuffer[3] = (byte) mSeq++;
+        if ((mSeq & 7) == 0) writeBuffer[4] = 0x01;
+        writeBuffer[5] = (byte) Crc8.compute(writeBuffer, 0, 5);
+        return writeBuffer;
+    }
+
+    /** ContecCodec.encodeAck() into one reused array, as acknowledge() does now */
+    @Benchmark
+    public byte[] inPlace() {
+        int seq = mSeq++;
+        ContecCodec.encodeAck(mOut, 0, seq, (mSeq & 7) != 0);
+        return mOut;
+    }
+
+    /** The original code also formatted each reply as hex for Log.v */
+    @Benchmark
+    public String allocatingWithHexLog() {
+        byte[] writeBuffer = allocating();
+        StringBuilder sb02 = new StringBuilder(writeBuffer.length * 2);
+        for (byte b : writeBuffer)
+            sb02.append(String.format("%02x", b));
+        return sb02.toString();
+    }
+}
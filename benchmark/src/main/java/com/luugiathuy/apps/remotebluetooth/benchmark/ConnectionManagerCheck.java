@@ -0,0 +1,197 @@
+package com.luugiathuy.apps.remotebluetooth.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.luugiathuy.apps.remotebluetooth.ConnectionManager;
+
+/**
+ * Checks ConnectionManager with fake sessions:
+ * - sessions are admitted up to the limit, one per address, and a slot is
+ *   free again once its session is disconnected;
+ * - state changes reach the manager's listeners with the address of the
+ *   session that made them;
+ * - per-session and aggregate state;
+ * - the session pool runs a loop at once even while more loops than it
+ *   has threads are blocked, so no loop waits behind a blocked read.
+ * Exits with status 1 on the first failure.
+ */
+public final class ConnectionManagerCheck {
+
+    // BluetoothCommandService.STATE_ constants
+    static final int STATE_NONE = 0;
+    static final int STATE_LISTEN = 1;
+    static final int STATE_CONNECTING = 2;
+    static final int STATE_CONNECTED = 3;
+
+    private ConnectionManagerCheck() {
+    }
+
+    static class FakeSession implements ConnectionManager.Session {
+        final String mAddress;
+        final Executor mExecutor;
+        final ConnectionManager.StateListener mListener;
+        int mState = STATE_NONE;
+        int mConnects;
+        boolean mStopped;
+
+        FakeSession(String address, Executor executor, ConnectionManager.StateListener listener) {
+            mAddress = address;
+            mExecutor = executor;
+            mListener = listener;
+        }
+
+        public void connect() {
+            mConnects++;
+            if (mState != STATE_CONNECTED) moveTo(STATE_CONNECTING);
+        }
+
+        public void stop() {
+            mStopped = true;
+            moveTo(STATE_NONE);
+        }
+
+        public int getState() {
+            return mState;
+        }
+
+        public void write(byte[] out) {
+        }
+
+        void moveTo(int state) {
+            int old = mState;
+            mState = state;
+            if (old != state) mListener.onStateChanged(old, state);
+        }
+    }
+
+    static class FakeFactory implements ConnectionManager.Factory {
+        final List<FakeSession> mCreated = new ArrayList<FakeSession>();
+
+        public ConnectionManager.Session create(String address, Executor executor,
+                ConnectionManager.StateListener listener) {
+            FakeSession session = new FakeSession(address, executor, listener);
+            mCreated.add(session);
+            return session;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        admission();
+        tagging();
+        aggregate();
+        poolNeverQueues();
+        System.out.println("ConnectionManager ok");
+    }
+
+    static void admission() {
+        FakeFactory factory = new FakeFactory();
+        ConnectionManager manager = new ConnectionManager(factory, 2);
+        ConnectionManager.Session a = manager.connect("A");
+        manager.connect("B");
+        check(manager.connect("A") == a, "second connect of A made a new session");
+        check(factory.mCreated.size() == 2, factory.mCreated.size() + " sessions for 2 addresses");
+        check(((FakeSession) a).mConnects == 2, "reused session not asked to connect");
+
+        boolean rejected = false;
+        try {
+            manager.connect("C");
+        } catch (IllegalStateException e) {
+            rejected = true;
+        }
+        check(rejected, "third session admitted with a limit of 2");
+        check(manager.getSessionCount() == 2, "rejected session was kept");
+
+        manager.disconnect("A");
+        check(((FakeSession) a).mStopped, "disconnected session not stopped");
+        manager.connect("C");
+        check(manager.getSessionCount() == 2, "C not admitted after A left");
+        check(manager.getSession("A") == null, "A still known after disconnect");
+        manager.shutdown();
+        check(manager.getSessionCount() == 0, "sessions left after shutdown");
+    }
+
+    static void tagging() {
+        FakeFactory factory = new FakeFactory();
+        ConnectionManager manager = new ConnectionManager(factory, 3);
+        final List<String> seen = new ArrayList<String>();
+        manager.addListener(new ConnectionManager.Listener() {
+            public void onStateChanged(String address, int oldState, int newState) {
+                seen.add(address + ":" + oldState + "->" + newState);
+            }
+        });
+        manager.connect("A");
+        manager.connect("B");
+        factory.mCreated.get(1).moveTo(STATE_CONNECTED);
+        factory.mCreated.get(0).moveTo(STATE_LISTEN);
+        String expected = "[A:0->2, B:0->2, B:2->3, A:2->1]";
+        check(seen.toString().equals(expected), "listeners saw " + seen + ", not " + expected);
+        manager.shutdown();
+    }
+
+    static void aggregate() {
+        FakeFactory factory = new FakeFactory();
+        ConnectionManager manager = new ConnectionManager(factory, 3);
+        check(manager.getAggregateState() == STATE_NONE, "aggregate state without sessions");
+        check(manager.getState("A") == STATE_NONE, "state of an unknown address");
+        manager.connect("A");
+        manager.connect("B");
+        manager.connect("C");
+        factory.mCreated.get(0).moveTo(STATE_LISTEN);
+        check(manager.getAggregateState() == STATE_CONNECTING, "aggregate state while connecting");
+        factory.mCreated.get(1).moveTo(STATE_CONNECTED);
+        check(manager.getAggregateState() == STATE_CONNECTED, "aggregate state with one connected");
+        check(manager.getState("B") == STATE_CONNECTED, "state of B");
+        check(manager.countInState(STATE_CONNECTING) == 1, "sessions connecting");
+        check(manager.countInState(STATE_LISTEN) == 1, "sessions listening");
+        manager.shutdown();
+    }
+
+    static void poolNeverQueues() throws InterruptedException {
+        FakeFactory factory = new FakeFactory();
+        ConnectionManager manager = new ConnectionManager(factory, 1);
+        manager.connect("A");
+        Executor executor = factory.mCreated.get(0).mExecutor;
+
+        // More blocked readers than the pool has threads for one session
+        final CountDownLatch release = new CountDownLatch(1);
+        int blocked = 10;
+        final CountDownLatch started = new CountDownLatch(blocked);
+        for (int i = 0; i < blocked; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        boolean allStarted = started.await(5, TimeUnit.SECONDS);
+
+        final CountDownLatch ran = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            public void run() {
+                ran.countDown();
+            }
+        });
+        boolean ranAtOnce = ran.await(5, TimeUnit.SECONDS);
+        release.countDown();
+        check(allStarted, "blocked loops were queued");
+        check(ranAtOnce, "a loop waited behind blocked ones");
+        check(manager.getOverflowThreadCount() > 0, "pool was never full");
+        manager.shutdown();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            System.out.println("ConnectionManager: " + message);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.luugiathuy.apps.remotebluetooth.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.luugiathuy.apps.remotebluetooth.Crc8;
+import com.luugiathuy.apps.remotebluetooth.FrameDecoder;
+
+/**
+ * CRC of the 57 bytes in front of the CRC byte of a data frame: the
+ * original hex string ConnectedThread.CRC_check against Crc8.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CrcBenchmark {
+
+    private final byte[] mFrame = new byte[FrameDecoder.DATA_FRAME_LENGTH];
+
+    @Setup
+    public void setup() {
+        Frames.dataFrame(mFrame, 7);
+    }
+
+    @Benchmark
+    public int legacyHexString() {
+        StringBuilder sb = new StringBuilder(mFrame.length * 2);
+        for (int i = 0; i < 57; i++)
+            sb.append(String.format("%02x", mFrame[i]));
+        return LegacyCrc.CRC_check(sb.toString());
+    }
+
+    @Benchmark
+    public int table() {
+        return Crc8.compute(mFrame, 0, 57);
+    }
+
+    @Benchmark
+    public boolean check() {
+        return Crc8.check(mFrame, 0, mFrame.length);
+    }
+}
@@ -0,0 +1,152 @@
+package com.luugiathuy.apps.remotebluetooth.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import com.luugiathuy.apps.remotebluetooth.ReadingDecoder;
+
+/**
+ * Checks that ReadingDecoder decodes recorded traces exactly as the SDK's
+ * DevicePackManager.arrangeMessage() did.
+ *
+ * A trace is a FrameTrace dump taken at LEVEL_FRAMES; its rx frames are
+ * what the reader thread hands to DecodeThread. Next to each x.trace,
+ * x.expected holds the {@link Transcript} of the SDK on the same frames,
+ * as written by DecoderRecord, with a "# zone" line naming the time zone
+ * it ran in. This decodes every trace with ReadingDecoder in that zone and
+ * exits with status 1 if any transcript differs.
+ *
+ *   DecoderCheck traces/session.trace traces/fuzz.trace ...
+ */
+public final class DecoderCheck implements ReadingDecoder.Sink {
+
+    static final String ZONE = "# zone ";
+
+    private final TimeZone mZone;
+    private final Transcript mTranscript;
+    // Readings of the frame being fed, written after its status line
+    private final List<long[]> mReadings = new ArrayList<long[]>();
+
+    private DecoderCheck(TimeZone zone) {
+        mZone = zone;
+        mTranscript = new Transcript(zone);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int failed = 0;
+        for (String arg : args) {
+            if (!check(new File(arg))) failed++;
+        }
+        System.out.println(args.length + " traces, " + failed + " differ");
+        if (failed > 0 || args.length == 0) System.exit(1);
+    }
+
+    /**
+     * Decode one trace and compare with its .expected file.
+     * @return true if the two agree
+     */
+    static boolean check(File trace) throws IOException {
+        TimeZone zone = TimeZone.getTimeZone("UTC");
+        List<String> expected = new ArrayList<String>();
+        for (String line : readLines(expectedFile(trace))) {
+            if (line.startsWith(ZONE)) {
+                zone = TimeZone.getTimeZone(line.substring(ZONE.length()));
+            } else if (!line.startsWith("#")) {
+                expected.add(line);
+            }
+        }
+
+        List<byte[]> frames = readFrames(trace);
+        List<String> actual = new DecoderCheck(zone).decode(frames);
+        int n = Math.min(expected.size(), actual.size());
+        for (int i = 0; i < n; i++) {
+            if (!expected.get(i).equals(actual.get(i))) {
+                System.out.println(trace.getName() + ": SDK \"" + expected.get(i)
+                        + "\", ReadingDecoder \"" + actual.get(i) + "\"");
+                return false;
+            }
+        }
+        if (expected.size() != actual.size()) {
+            System.out.println(trace.getName() + ": SDK wrote " + expected.size()
+                    + " lines, ReadingDecoder " + actual.size());
+            return false;
+        }
+        System.out.println(trace.getName() + ": " + frames.size() + " frames, " + n + " lines agree");
+        return true;
+    }
+
+    private List<String> decode(List<byte[]> frames) {
+        ReadingDecoder decoder = new ReadingDecoder(this, mZone);
+        for (int i = 0; i < frames.size(); i++) {
+            byte[] frame = frames.get(i);
+            mTranscript.frame(i, decoder.feed(frame, frame.length));
+            for (long[] reading : mReadings) {
+                mTranscript.reading(reading[0], reading[1] / 10.0);
+            }
+            mReadings.clear();
+            long time = decoder.getDeviceTime();
+            mTranscript.deviceTime(time == ReadingDecoder.NO_TIME ? null : mTranscript.format(time));
+        }
+        mTranscript.expected(decoder.getExpectedCount());
+        return mTranscript.lines();
+    }
+
+    public void onReading(long timeMs, int tenths) {
+        mReadings.add(new long[] {timeMs, tenths});
+    }
+
+    /**
+     * Return the file holding the SDK's transcript of a trace.
+     */
+    static File expectedFile(File trace) {
+        String name = trace.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(trace.getParentFile(), (dot < 0 ? name : name.substring(0, dot)) + ".expected");
+    }
+
+    /**
+     * Return the rx frames of a FrameTrace dump, oldest first.
+     * @throws IOException if a frame was cut to the trace's record size
+     */
+    static List<byte[]> readFrames(File trace) throws IOException {
+        List<byte[]> frames = new ArrayList<byte[]>();
+        int lineNo = 0;
+        for (String line : readLines(trace)) {
+            lineNo++;
+            // -<ms>ms <event> len=<length> <hex>[..]
+            String[] fields = line.trim().split(" ");
+            if (fields.length < 3 || !fields[1].equals("rx")) continue;
+            String hex = fields.length > 3 ? fields[3] : "";
+            int length = Integer.parseInt(fields[2].substring("len=".length()));
+            if (hex.endsWith("..") || hex.length() != length * 2) {
+                throw new IOException(trace + ":" + lineNo + ": frame cut, dump at LEVEL_FRAMES");
+            }
+            byte[] frame = new byte[length];
+            for (int i = 0; i < length; i++) {
+                frame[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+            }
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.length() > 0) lines.add(line);
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,59 @@
+package com.luugiathuy.apps.remotebluetooth.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.luugiathuy.apps.remotebluetooth.FrameDecoder;
+
+/**
+ * FrameDecoder on a stream of 58 byte data frames, fed in chunks of the
+ * given size the way InputStream.read() might return them. One operation
+ * is one decoded frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FrameDecodeBenchmark implements FrameDecoder.Listener {
+
+    private static final int FRAMES = 64;
+
+    /** Bytes per feed() call: one byte, a split frame, one frame, a full read buffer */
+    @Param({"1", "20", "58", "1024"})
+    public int chunk;
+
+    private byte[] mStream;
+    private FrameDecoder mDecoder;
+    private int mSeqSum;
+
+    @Setup
+    public void setup() {
+        mStream = Frames.stream(FRAMES);
+        mDecoder = new FrameDecoder(this);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int decode() {
+        for (int off = 0; off < mStream.length; off += chunk) {
+            mDecoder.feed(mStream, off, Math.min(chunk, mStream.length - off));
+        }
+        return mSeqSum;
+    }
+
+    public void onFrame(byte[] frame, int length) {
+        mSeqSum += frame[3];
+    }
+
+    public void onCorruptFrame(byte[] frame, int length) {
+        throw new IllegalStateException("corrupt frame in benchmark stream");
+    }
+}
@@ -0,0 +1,85 @@
+package com.luugiathuy.apps.remotebluetooth.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.luugiathuy.apps.remotebluetooth.Crc8;
+import com.luugiathuy.apps.remotebluetooth.FrameDecoder;
+
+/**
+ * Checks that FrameDecoder reports a corrupt frame only at a frame
+ * boundary. The stream is three data frames; the second lost a byte on
+ * the way and carries 0xA5 0xAA in its payload after the lost byte. The
+ * decoder must deliver the first and third frames, report the second as
+ * corrupt once, and skip the false frame in its payload without a word,
+ * fed all at once and byte by byte. Exits with status 1 if it does not.
+ */
+public final class FrameDecoderCheck implements FrameDecoder.Listener {
+
+    // Where the false frame starts in the second frame, and the byte lost
+    // before it
+    static final int FALSE_HEADER_AT = 20;
+    static final int DROPPED_AT = 10;
+    static final int FALSE_PAYLOAD = 4;
+
+    private final List<Integer> mFrames = new ArrayList<Integer>();
+    private final List<Integer> mCorrupt = new ArrayList<Integer>();
+
+    private FrameDecoderCheck() {
+    }
+
+    public static void main(String[] args) {
+        int length = FrameDecoder.DATA_FRAME_LENGTH;
+        byte[] frame = new byte[length];
+        byte[] stream = new byte[3 * length - 1];
+
+        Frames.dataFrame(frame, 1);
+        System.arraycopy(frame, 0, stream, 0, length);
+
+        Frames.dataFrame(frame, 2);
+        frame[FALSE_HEADER_AT] = FrameDecoder.HEADER;
+        frame[FALSE_HEADER_AT + 1] = FrameDecoder.TYPE_DATA;
+        frame[FALSE_HEADER_AT + 2] = FALSE_PAYLOAD;
+        frame[length - 1] = (byte) Crc8.compute(frame, 0, length - 1);
+        System.arraycopy(frame, 0, stream, length, DROPPED_AT);
+        System.arraycopy(frame, DROPPED_AT + 1, stream, length + DROPPED_AT, length - DROPPED_AT - 1);
+        check(!Crc8.check(stream, length + FALSE_HEADER_AT - 1, FALSE_PAYLOAD + FrameDecoder.OVERHEAD),
+                "the false frame has a valid CRC");
+
+        Frames.dataFrame(frame, 3);
+        System.arraycopy(frame, 0, stream, 2 * length - 1, length);
+
+        run("at once", stream, stream.length);
+        run("byte by byte", stream, 1);
+        System.out.println("FrameDecoder ok");
+    }
+
+    static void run(String name, byte[] stream, int chunk) {
+        FrameDecoderCheck listener = new FrameDecoderCheck();
+        FrameDecoder decoder = new FrameDecoder(listener);
+        for (int off = 0; off < stream.length; off += chunk) {
+            decoder.feed(stream, off, Math.min(chunk, stream.length - off));
+        }
+        check(listener.mFrames.toString().equals("[1, 3]"),
+                name + ": good frames " + listener.mFrames + ", not [1, 3]");
+        check(listener.mCorrupt.toString().equals("[2]"),
+                name + ": corrupt frames " + listener.mCorrupt + ", not [2]");
+        check(decoder.getCrcErrorCount() == 1,
+                name + ": " + decoder.getCrcErrorCount() + " CRC errors counted");
+    }
+
+    public void onFrame(byte[] frame, int length) {
+        mFrames.add(frame[3] & 0xff);
+    }
+
+    public void onCorruptFrame(byte[] frame, int length) {
+        mCorrupt.add(frame[3] & 0xff);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            System.out.println("FrameDecoder: " + message);
+            System.exit(1);
+        }
+    }
+}
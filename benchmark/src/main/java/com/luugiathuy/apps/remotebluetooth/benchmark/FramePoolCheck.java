@@ -0,0 +1,48 @@
+package com.luugiathuy.apps.remotebluetooth.benchmark;
+
+import com.luugiathuy.apps.remotebluetooth.FrameDecoder;
+import com.luugiathuy.apps.remotebluetooth.FramePool;
+
+/**
+ * Checks that FramePool never hands one buffer to two leases: releasing a
+ * buffer twice must fail and leave the pool as it was after the first
+ * release. Exits with status 1 if it does not.
+ */
+public final class FramePoolCheck {
+
+    private FramePoolCheck() {
+    }
+
+    public static void main(String[] args) {
+        FramePool pool = new FramePool(4, FrameDecoder.DEFAULT_MAX_FRAME);
+        byte[] buffer = pool.lease();
+        pool.release(buffer);
+
+        boolean rejected = false;
+        try {
+            pool.release(buffer);
+        } catch (IllegalStateException e) {
+            rejected = true;
+        }
+        check(rejected, "second release was accepted");
+        check(pool.getFreeCount() == 4, "free count " + pool.getFreeCount() + " after a double release");
+        check(pool.getOutstanding() == 0, "outstanding " + pool.getOutstanding() + " after a double release");
+
+        byte[] first = pool.lease();
+        byte[] second = pool.lease();
+        check(first != second, "two leases got the same buffer");
+        check(pool.getOutstanding() == 2, "outstanding " + pool.getOutstanding() + " with two leases");
+        pool.release(first);
+        pool.release(second);
+        check(pool.getOutstanding() == 0, "outstanding " + pool.getOutstanding() + " after both came back");
+
+        System.out.println("FramePool ok");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            System.out.println("FramePool: " + message);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.luugiathuy.apps.remotebluetooth.benchmark;
+
+import com.luugiathuy.apps.remotebluetooth.Crc8;
+import com.luugiathuy.apps.remotebluetooth.FrameDecoder;
+
+/**
+ * Test frames shared by the benchmarks.
+ */
+final class Frames {
+
+    private Frames() {
+    }
+
+    /**
+     * Fill frame with a valid 58 byte data frame carrying sequence number seq.
+     */
+    static void dataFrame(byte[] frame, int seq) {
+        frame[0] = FrameDecoder.HEADER;
+        frame[1] = FrameDecoder.TYPE_DATA;
+        frame[2] = (byte) (FrameDecoder.DATA_FRAME_LENGTH - FrameDecoder.OVERHEAD);
+        frame[3] = (byte) seq;
+        for (int i = 4; i < FrameDecoder.DATA_FRAME_LENGTH - 1; i++) {
+            frame[i] = (byte) (seq * 31 + i);
+        }
+        frame[FrameDecoder.DATA_FRAME_LENGTH - 1] =
+                (byte) Crc8.compute(frame, 0, FrameDecoder.DATA_FRAME_LENGTH - 1);
+    }
+
+    /**
+     * Return count data frames back to back, as they would sit in a socket buffer.
+     */
+    static byte[] stream(int count) {
+        byte[] stream = new byte[count * FrameDecoder.DATA_FRAME_LENGTH];
+        byte[] frame = new byte[FrameDecoder.DATA_FRAME_LENGTH];
+        for (int i = 0; i < count; i++) {
+            dataFrame(frame, i);
+            System.arraycopy(frame, 0, stream, i * frame.length, frame.length);
+        }
+        return stream;
+    }
+}
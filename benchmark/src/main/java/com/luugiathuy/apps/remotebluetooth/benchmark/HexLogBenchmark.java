@@ -0,0 +1,82 @@
+package com.luugiathuy.apps.remotebluetooth.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.luugiathuy.apps.remotebluetooth.FrameDecoder;
+import com.luugiathuy.apps.remotebluetooth.FrameTrace;
+import com.luugiathuy.apps.remotebluetooth.Hex;
+
+/**
+ * Cost of the hex dump ConnectedThread used to build for Log.v on every
+ * frame, against recording the frame in a FrameTrace.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HexLogBenchmark {
+
+    private final byte[] mFrame = new byte[FrameDecoder.DATA_FRAME_LENGTH];
+    private final byte[] mReadBuffer = new byte[1024];
+    private final FrameTrace mEvents = new FrameTrace(FrameTrace.DEFAULT_CAPACITY,
+            FrameDecoder.DEFAULT_MAX_FRAME, FrameTrace.LEVEL_EVENTS);
+    private final FrameTrace mFrames = new FrameTrace(FrameTrace.DEFAULT_CAPACITY,
+            FrameDecoder.DEFAULT_MAX_FRAME, FrameTrace.LEVEL_FRAMES);
+    private final FrameTrace mOff = new FrameTrace(FrameTrace.DEFAULT_CAPACITY,
+            FrameDecoder.DEFAULT_MAX_FRAME, FrameTrace.LEVEL_OFF);
+
+    @Setup
+    public void setup() {
+        Frames.dataFrame(mFrame, 3);
+        System.arraycopy(mFrame, 0, mReadBuffer, 0, mFrame.length);
+    }
+
+    /** One decoded 58 byte frame, as logged now */
+    @Benchmark
+    public String frame() {
+        StringBuilder sb = new StringBuilder(mFrame.length * 2);
+        for (int i = 0; i < mFrame.length; i++)
+            sb.append(String.format("%02x", mFrame[i]));
+        return sb.toString();
+    }
+
+    /** The whole 1024 byte read buffer, as the original loop logged it */
+    @Benchmark
+    public String readBuffer() {
+        StringBuilder sb = new StringBuilder(mReadBuffer.length * 2);
+        for (byte b : mReadBuffer)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    /** One frame through the table based formatter used by FrameTrace.dump() */
+    @Benchmark
+    public String frameHex() {
+        return Hex.toString(mFrame, 0, mFrame.length);
+    }
+
+    /** What the reader thread pays per frame with tracing off */
+    @Benchmark
+    public void traceOff() {
+        mOff.record(FrameTrace.EVENT_RX, mFrame, mFrame.length);
+    }
+
+    /** ... at the default level */
+    @Benchmark
+    public void traceEvents() {
+        mEvents.record(FrameTrace.EVENT_RX, mFrame, mFrame.length);
+    }
+
+    /** ... keeping whole frames */
+    @Benchmark
+    public void traceFrames() {
+        mFrames.record(FrameTrace.EVENT_RX, mFrame, mFrame.length);
+    }
+}
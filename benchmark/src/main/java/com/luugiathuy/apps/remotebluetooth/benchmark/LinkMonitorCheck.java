@@ -0,0 +1,120 @@
+package com.luugiathuy.apps.remotebluetooth.benchmark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.luugiathuy.apps.remotebluetooth.LinkMonitor;
+import com.luugiathuy.apps.remotebluetooth.Watchdog;
+
+/**
+ * Checks LinkMonitor on the real watchdog, with deadlines short enough to
+ * pass in a few seconds:
+ * - without probes, a quiet link is never suspect, however long it is
+ *   quiet;
+ * - without probes, a stream that stops is declared dead after a few
+ *   frame intervals, long before the idle deadline;
+ * - with probes, a quiet link is probed at the idle deadline and declared
+ *   dead only if the probe goes unanswered.
+ * Exits with status 1 on the first failure.
+ */
+public final class LinkMonitorCheck {
+
+    static final long SHORT_IDLE_MS = 100;
+    static final long PROBE_TIMEOUT_MS = 200;
+    static final long FRAME_INTERVAL_MS = 20;
+    static final int FRAMES = 8;
+    static final long WAIT_MS = 3000;
+
+    private LinkMonitorCheck() {
+    }
+
+    static class Link implements LinkMonitor.Callback {
+        final AtomicInteger mProbes = new AtomicInteger();
+        final CountDownLatch mProbed = new CountDownLatch(1);
+        final CountDownLatch mDead = new CountDownLatch(1);
+
+        public void sendProbe() {
+            mProbes.incrementAndGet();
+            mProbed.countDown();
+        }
+
+        public void onLinkDead(long silentMs) {
+            mDead.countDown();
+        }
+
+        boolean isDead() {
+            return mDead.getCount() == 0;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Watchdog watchdog = Watchdog.getDefault();
+        quietWithoutProbes(watchdog);
+        streamStopsWithoutProbes(watchdog);
+        quietWithProbes(watchdog);
+        System.out.println("LinkMonitor ok");
+    }
+
+    static void quietWithoutProbes(Watchdog watchdog) throws InterruptedException {
+        Link link = new Link();
+        LinkMonitor monitor = new LinkMonitor(link, watchdog, LinkMonitor.DEFAULT_IDLE_MS,
+                LinkMonitor.DEFAULT_PROBE_TIMEOUT_MS, false);
+        monitor.start(System.nanoTime());
+        check(monitor.getDeadlineNanos() == 0, "quiet link without probes has a deadline of "
+                + monitor.getDeadlineNanos() / 1000000L + " ms, not none");
+        monitor.stop();
+
+        // Quiet for many idle deadlines
+        link = new Link();
+        monitor = new LinkMonitor(link, watchdog, SHORT_IDLE_MS, PROBE_TIMEOUT_MS, false);
+        monitor.start(System.nanoTime());
+        boolean dead = link.mDead.await(10 * SHORT_IDLE_MS, TimeUnit.MILLISECONDS);
+        monitor.stop();
+        check(!dead, "quiet link without probes closed");
+        check(link.mProbes.get() == 0, "probe sent with probes off");
+    }
+
+    static void streamStopsWithoutProbes(Watchdog watchdog) throws InterruptedException {
+        Link link = new Link();
+        LinkMonitor monitor = new LinkMonitor(link, watchdog, LinkMonitor.DEFAULT_IDLE_MS,
+                LinkMonitor.DEFAULT_PROBE_TIMEOUT_MS, false);
+        monitor.start(System.nanoTime());
+        for (int i = 0; i < FRAMES; i++) {
+            long now = System.nanoTime();
+            monitor.onRead(now);
+            monitor.onFrame(now);
+            Thread.sleep(FRAME_INTERVAL_MS);
+        }
+        check(monitor.getExpectedIntervalNanos() > 0, "interval not learned");
+        long deadlineMs = monitor.getDeadlineNanos() / 1000000L;
+        check(deadlineMs > 0 && deadlineMs < LinkMonitor.DEFAULT_IDLE_MS,
+                "streaming deadline of " + deadlineMs + " ms");
+        boolean dead = link.mDead.await(WAIT_MS, TimeUnit.MILLISECONDS);
+        monitor.stop();
+        check(dead, "stopped stream not declared dead within " + WAIT_MS + " ms");
+    }
+
+    static void quietWithProbes(Watchdog watchdog) throws InterruptedException {
+        Link link = new Link();
+        LinkMonitor monitor = new LinkMonitor(link, watchdog, SHORT_IDLE_MS, PROBE_TIMEOUT_MS, true);
+        monitor.start(System.nanoTime());
+        boolean probed = link.mProbed.await(WAIT_MS, TimeUnit.MILLISECONDS);
+        check(probed, "quiet link not probed");
+        // The device answers the first probe
+        monitor.onRead(System.nanoTime());
+        check(!link.isDead(), "answered probe declared dead");
+        // ...but not the next one
+        boolean dead = link.mDead.await(WAIT_MS, TimeUnit.MILLISECONDS);
+        monitor.stop();
+        check(dead, "unanswered probe not declared dead");
+        check(link.mProbes.get() >= 2, "answered probe not followed by another");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            System.out.println("LinkMonitor: " + message);
+            System.exit(1);
+        }
+    }
+}
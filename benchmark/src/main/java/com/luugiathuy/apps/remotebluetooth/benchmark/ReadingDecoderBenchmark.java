@@ -0,0 +1,102 @@
+package com.luugiathuy.apps.remotebluetooth.benchmark;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.luugiathuy.apps.remotebluetooth.Crc8;
+import com.luugiathuy.apps.remotebluetooth.FrameDecoder;
+import com.luugiathuy.apps.remotebluetooth.ReadingDecoder;
+
+/**
+ * ReadingDecoder on a download of reading packets. One operation is one
+ * decoded reading. traces/ checks the decoder still agrees with the SDK.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReadingDecoderBenchmark implements ReadingDecoder.Sink {
+
+    private static final int READINGS = 64;
+    private static final int PACKET_LENGTH = 9;
+
+    private byte[][] mFrames;
+    private byte[] mPackets;
+    private ReadingDecoder mDecoder;
+    private long mSum;
+
+    @Setup
+    public void setup() {
+        mPackets = new byte[READINGS * PACKET_LENGTH];
+        mFrames = new byte[READINGS][];
+        for (int i = 0; i < READINGS; i++) {
+            readingPacket(mPackets, i * PACKET_LENGTH, i);
+            mFrames[i] = frame(mPackets, i * PACKET_LENGTH, i);
+        }
+        mDecoder = new ReadingDecoder(this, TimeZone.getTimeZone("UTC"));
+    }
+
+    /** One packet per data frame, fed frame by frame as DecodeThread does */
+    @Benchmark
+    @OperationsPerInvocation(READINGS)
+    public long frames() {
+        for (byte[] frame : mFrames) {
+            mDecoder.feed(frame, frame.length);
+        }
+        return mSum;
+    }
+
+    /** The packets back to back in one call, the decoder's inner loop alone */
+    @Benchmark
+    @OperationsPerInvocation(READINGS)
+    public long packets() {
+        mDecoder.feed(mPackets, mPackets.length);
+        return mSum;
+    }
+
+    public void onReading(long timeMs, int tenths) {
+        mSum += timeMs + tenths;
+    }
+
+    /**
+     * Write a reading packet for 36.0 to 37.5 degrees at out[offset], taken
+     * i hours after the start of 2015.
+     */
+    private static void readingPacket(byte[] out, int offset, int i) {
+        int seconds = 473385600 + i * 3600;
+        int raw = 3600 + i % 16 * 10;
+        int timeHigh = 0;
+        for (int k = 0; k < 4; k++) {
+            timeHigh |= (seconds >> (8 * k + 7) & 1) << k;
+            out[offset + 4 + k] = (byte) (0x80 | (seconds >> (8 * k) & 0x7f));
+        }
+        out[offset] = 0x20;
+        out[offset + 1] = (byte) (0x80 | (raw >> 7 & 1) << 1 | timeHigh << 2);
+        out[offset + 2] = (byte) (0x80 | (raw >> 8 & 0x0f));
+        out[offset + 3] = (byte) (0x80 | (raw & 0x7f));
+        out[offset + 8] = (byte) 0x80;
+    }
+
+    /**
+     * Return a data frame carrying the packet at packets[offset]. Sequence
+     * numbers start at 0x40 so none reads as a command byte.
+     */
+    private static byte[] frame(byte[] packets, int offset, int i) {
+        byte[] frame = new byte[PACKET_LENGTH + FrameDecoder.OVERHEAD + 1];
+        frame[0] = FrameDecoder.HEADER;
+        frame[1] = FrameDecoder.TYPE_DATA;
+        frame[2] = (byte) (PACKET_LENGTH + 1);
+        frame[3] = (byte) (0x40 + i);
+        System.arraycopy(packets, offset, frame, 4, PACKET_LENGTH);
+        frame[frame.length - 1] = (byte) Crc8.compute(frame, 0, frame.length - 1);
+        return frame;
+    }
+}
@@ -0,0 +1,187 @@
+package com.luugiathuy.apps.remotebluetooth.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.luugiathuy.apps.remotebluetooth.AckWindow;
+import com.luugiathuy.apps.remotebluetooth.ContecCodec;
+import com.luugiathuy.apps.remotebluetooth.FrameDecoder;
+import com.luugiathuy.apps.remotebluetooth.SimulatedThermometer;
+import com.luugiathuy.apps.remotebluetooth.Watchdog;
+
+/**
+ * Load test of the receive path against SimulatedThermometer on a plain
+ * JVM.
+ *
+ * The host end does what ConnectedThread does with a connection, minus the
+ * Android parts: one thread reads the transport into a FrameDecoder,
+ * answers the config frame, and has an AckWindow acknowledge data frames,
+ * with its ack delay run on a Watchdog. ACKs are written straight to the
+ * transport instead of through WriteThread, and frames are counted instead
+ * of being queued for DecodeThread.
+ *
+ * Every run sends 5000 frames in random chunks with 5% of them corrupted,
+ * once with an ACK per frame and once with a window of 8. A run passes if
+ * the device got all frames through, every corrupted frame was NAKed and
+ * sent again, and the host saw each frame good exactly once. Exits with
+ * status 1 otherwise.
+ */
+public final class SimulatorCheck implements FrameDecoder.Listener, AckWindow.Sender {
+
+    static final int FRAMES = 5000;
+    static final float CORRUPT_RATE = 0.05f;
+    static final int MAX_CHUNK = 16;
+    static final int WINDOW = 8;
+    static final long ACK_DELAY_MS = 20;
+    static final long TIMEOUT_MS = 60000;
+
+    private final SimulatedThermometer mDevice;
+    private final FrameDecoder mDecoder = new FrameDecoder(this);
+    private final AckWindow mAckWindow;
+    private final Watchdog mWatchdog = Watchdog.getDefault();
+    private final OutputStream mOut;
+    private final byte[] mAckFrame = new byte[ContecCodec.ACK_LENGTH];
+    private final byte[] mConfigReply = new byte[ContecCodec.CONFIG_REPLY.length()];
+    private boolean mConfigured;
+    private long mReadNanos;
+    private volatile IOException mWriteError;
+    // Set once the run is over; writes may fail from then on
+    private volatile boolean mStopped;
+
+    // Good data frames seen for each sequence number, and in all
+    private final int[] mSeen = new int[256];
+    private int mGoodFrames;
+    private int mCorruptFrames;
+
+    private final Runnable mAckTimer = new Runnable() {
+        public void run() {
+            long wait = mAckWindow.flushIfDue(System.nanoTime());
+            if (wait > 0) mWatchdog.schedule(wait / 1000000L + 1, this);
+        }
+    };
+
+    private SimulatorCheck(SimulatedThermometer device, int ackMode, int window) throws IOException {
+        mDevice = device;
+        mOut = device.getOutputStream();
+        mAckWindow = new AckWindow(this, ackMode, window, ACK_DELAY_MS);
+        ContecCodec.CONFIG_REPLY.copyTo(mConfigReply, 0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean ok = run("per-frame", 1, AckWindow.MODE_PER_FRAME);
+        ok &= run("window " + WINDOW, WINDOW, AckWindow.MODE_WINDOWED);
+        if (!ok) System.exit(1);
+    }
+
+    /**
+     * Send FRAMES frames through the simulator and check what came out.
+     * @return true if the run passed
+     */
+    static boolean run(String name, int window, int ackMode) throws Exception {
+        SimulatedThermometer.Config config = new SimulatedThermometer.Config();
+        config.frameCount = FRAMES;
+        config.corruptRate = CORRUPT_RATE;
+        config.maxChunk = MAX_CHUNK;
+        config.window = window;
+        final SimulatedThermometer device = new SimulatedThermometer(config);
+        final SimulatorCheck host = new SimulatorCheck(device, ackMode, window);
+
+        Thread reader = new Thread("SimulatorCheck") {
+            public void run() {
+                host.readLoop();
+            }
+        };
+        reader.setDaemon(true);
+        long start = System.nanoTime();
+        device.start();
+        reader.start();
+        boolean done = device.join(TIMEOUT_MS);
+        long elapsedMs = (System.nanoTime() - start) / 1000000L;
+        host.mStopped = true;
+        device.close();
+        reader.join(TIMEOUT_MS);
+
+        String failure = host.check(done);
+        System.out.println(name + ": " + device.getFramesSent() + " frames sent, "
+                + device.getCorruptedCount() + " corrupted, " + device.getNakCount() + " NAKed, "
+                + device.getRetransmits() + " sent again, " + device.getAckCount() + " ACKs, "
+                + elapsedMs + " ms" + (failure == null ? "" : ": " + failure));
+        return failure == null;
+    }
+
+    private void readLoop() {
+        byte[] buffer = new byte[1024];
+        InputStream in = mDevice.getInputStream();
+        try {
+            while (true) {
+                int n = in.read(buffer);
+                if (n < 0) return;
+                mReadNanos = System.nanoTime();
+                synchronized (this) {
+                    mDecoder.feed(buffer, 0, n);
+                }
+            }
+        } catch (IOException e) {
+            // Closed at the end of the run
+        }
+    }
+
+    /**
+     * Return what went wrong in the run, or null if nothing did.
+     */
+    private synchronized String check(boolean done) {
+        if (mWriteError != null) return "write failed: " + mWriteError;
+        if (!done) return "timed out";
+        if (!mConfigured) return "no config frame";
+        if (mDevice.getFramesSent() - mDevice.getRetransmits() != FRAMES) return "frames missing";
+        if (mDevice.getNakCount() != mDevice.getCorruptedCount()) return "NAKs differ from corrupted frames";
+        if (mDevice.getRetransmits() != mDevice.getCorruptedCount()) return "corrupted frames not sent again";
+        if (mCorruptFrames != mDevice.getCorruptedCount()) return "host saw " + mCorruptFrames + " bad frames";
+        if (mGoodFrames != FRAMES) return "host saw " + mGoodFrames + " good frames";
+        for (int seq = 0; seq < 256; seq++) {
+            int expected = FRAMES / 256 + (seq < FRAMES % 256 ? 1 : 0);
+            if (mSeen[seq] != expected) return "sequence " + seq + " seen " + mSeen[seq] + " times";
+        }
+        return null;
+    }
+
+    public void onFrame(byte[] frame, int length) {
+        if (ContecCodec.isConfig(frame) && !mConfigured) {
+            write(mConfigReply, mConfigReply.length);
+            mConfigured = true;
+        } else if (mConfigured && ContecCodec.isData(frame)) {
+            mGoodFrames++;
+            mSeen[ContecCodec.sequence(frame)]++;
+            if (mAckWindow.onFrame(ContecCodec.sequence(frame), mReadNanos)) {
+                mWatchdog.schedule(mAckWindow.getAckDelayMs(), mAckTimer);
+            }
+        }
+    }
+
+    public void onCorruptFrame(byte[] frame, int length) {
+        if (mConfigured && ContecCodec.isData(frame)) {
+            mCorruptFrames++;
+            mAckWindow.onCorruptFrame(ContecCodec.sequence(frame), mReadNanos);
+        }
+    }
+
+    // From the reader, and from the ack timer
+    public void sendAck(int seq, boolean ok, long readNanos) {
+        synchronized (mAckFrame) {
+            int n = ContecCodec.encodeAck(mAckFrame, 0, seq, ok);
+            write(mAckFrame, n);
+        }
+    }
+
+    private void write(byte[] bytes, int length) {
+        try {
+            synchronized (mOut) {
+                mOut.write(bytes, 0, length);
+                mOut.flush();
+            }
+        } catch (IOException e) {
+            if (!mStopped && mWriteError == null) mWriteError = e;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.luugiathuy.apps.remotebluetooth.benchmark;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * What a decoder made of a trace, one line per event, written the same way
+ * for ReadingDecoder and for the SDK so the two can be compared as text:
+ * <pre>
+ *   frame 12 status 2                  every frame, with the status returned
+ *   reading 2015-03-02 10:11:12 36.5   every reading the frame completed
+ *   time 2015-03-02 10:20:00           the device clock, when it changes
+ *   expected 120                       readings announced, after the last frame
+ * </pre>
+ * Times are formatted the way the SDK stores them, in the given zone.
+ */
+final class Transcript {
+
+    private final SimpleDateFormat mFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private final List<String> mLines = new ArrayList<String>();
+    private String mDeviceTime;
+
+    Transcript(TimeZone zone) {
+        mFormat.setTimeZone(zone);
+    }
+
+    void frame(int index, int status) {
+        mLines.add("frame " + index + " status " + status);
+    }
+
+    void reading(long timeMs, double value) {
+        reading(format(timeMs), value);
+    }
+
+    void reading(String time, double value) {
+        mLines.add("reading " + time + " " + value);
+    }
+
+    /**
+     * Note the device clock, null if it was not reported yet.
+     */
+    void deviceTime(String time) {
+        if (time != null && !time.equals(mDeviceTime)) {
+            mDeviceTime = time;
+            mLines.add("time " + time);
+        }
+    }
+
+    void expected(int count) {
+        mLines.add("expected " + count);
+    }
+
+    String format(long timeMs) {
+        return mFormat.format(new Date(timeMs));
+    }
+
+    List<String> lines() {
+        return mLines;
+    }
+}
@@ -0,0 +1,23 @@
+package android.util;
+
+/**
+ * Stand-in for Android's Log, which the SDK calls on every packet, so the
+ * SDK can run on a plain JVM. Drops everything.
+ */
+public final class Log {
+
+    private Log() {
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        return 0;
+    }
+}
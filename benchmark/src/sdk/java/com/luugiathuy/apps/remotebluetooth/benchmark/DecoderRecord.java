@@ -0,0 +1,72 @@
+package com.luugiathuy.apps.remotebluetooth.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import cn.com.contec.jar.eartemperture.DevicePackManager;
+import cn.com.contec.jar.eartemperture.EarTempertureDataJar;
+
+/**
+ * Records what the SDK's DevicePackManager.arrangeMessage() decodes from
+ * FrameTrace dumps, as the .expected files DecoderCheck compares with.
+ * Run it on a new trace, or after deliberately changing what a trace
+ * should decode to. The SDK formats times in the default zone, set here
+ * from the zone property (UTC if unset).
+ *
+ *   DecoderRecord traces/session.trace ...
+ */
+public final class DecoderRecord {
+
+    private DecoderRecord() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        TimeZone zone = TimeZone.getTimeZone(System.getProperty("zone", "UTC"));
+        TimeZone.setDefault(zone);
+        for (String arg : args) {
+            File trace = new File(arg);
+            List<String> lines = record(DecoderCheck.readFrames(trace), zone);
+            File out = DecoderCheck.expectedFile(trace);
+            Writer w = new OutputStreamWriter(new FileOutputStream(out), "UTF-8");
+            try {
+                w.write("# DevicePackManager.arrangeMessage() on " + trace.getName() + "\n");
+                w.write(DecoderCheck.ZONE + zone.getID() + "\n");
+                for (String line : lines) {
+                    w.write(line);
+                    w.write('\n');
+                }
+            } finally {
+                w.close();
+            }
+            System.out.println(out + ": " + lines.size() + " lines");
+        }
+    }
+
+    private static List<String> record(List<byte[]> frames, TimeZone zone) throws Exception {
+        Transcript transcript = new Transcript(zone);
+        DevicePackManager sdk = new DevicePackManager();
+        int seen = 0;
+        for (int i = 0; i < frames.size(); i++) {
+            byte[] frame = frames.get(i);
+            transcript.frame(i, sdk.arrangeMessage(frame, frame.length));
+            ArrayList<EarTempertureDataJar> datas = sdk.m_DeviceDatas;
+            for (; datas != null && seen < datas.size(); seen++) {
+                EarTempertureDataJar data = datas.get(seen);
+                transcript.reading(data.m_saveDate, data.m_data);
+            }
+            transcript.deviceTime(sdk.mDeviceTime);
+        }
+        // The announced count is not public
+        Field count = DevicePackManager.class.getDeclaredField("mEarDataNum");
+        count.setAccessible(true);
+        transcript.expected(count.getInt(sdk));
+        return transcript.lines();
+    }
+}